@@ -0,0 +1,117 @@
+package com.rakensi;
+
+import java.util.Collections;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.DocumentImpl;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xquery.AnalyzeContextInfo;
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.FunctionReference;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+
+/**
+ * Grammars, inputs and an XQuery context for the benchmarks.
+ * The benchmarks are in the com.rakensi package, so they can use the package-private function signatures.
+ */
+final class BenchmarkSupport
+{
+
+  static final String DATE_GRAMMAR =
+      " date = year, -'-', month, -'-', day .\n" +
+      " year = d, d, d, d .\n" +
+      "month = '0', d | '1', ['0'|'1'|'2'] .\n" +
+      "  day = ['0'|'1'|'2'], d | '3', ['0'|'1'] .\n" +
+      "   -d = ['0'-'9'] .\n";
+
+  static final String CSV_GRAMMAR =
+      "csv = line+ .\n" +
+      "line = field++-',', -#a .\n" +
+      "field = ~[',';#a]* .\n";
+
+  // A transparent grammar that marks dates in running text.
+  static final String TIXML_DATE_GRAMMAR =
+      "text = part* .\n" +
+      "-part = date | ~[] .\n" +
+      DATE_GRAMMAR;
+
+  static final String TEXT_LINE = "On 2024-06-07 we met, and on 2024-10-17 we met again. ";
+
+  private BenchmarkSupport() {
+  }
+
+  // An XQuery context that is not connected to a database.
+  static XQueryContext newContext() {
+    return new XQueryContext();
+  }
+
+  static String grammar(String name) throws XPathException {
+    switch (name) {
+      case "date": return DATE_GRAMMAR;
+      case "csv": return CSV_GRAMMAR;
+      case "ixml": return ExtensionFunctionsModule.getIxmlGrammar();
+      default: throw new IllegalArgumentException("Unknown grammar " + name);
+    }
+  }
+
+  static String csvInput(int lines) {
+    final StringBuilder input = new StringBuilder();
+    for (int i = 0; i < lines; ++i) {
+      input.append("field").append(i).append(",second,third field,4\n");
+    }
+    return input.toString();
+  }
+
+  static String textInput(int lines) {
+    final StringBuilder input = new StringBuilder();
+    for (int i = 0; i < lines; ++i) {
+      input.append(TEXT_LINE);
+    }
+    return input.toString();
+  }
+
+  // An in-memory document with one paragraph per line of text.
+  static DocumentImpl textDocument(XQueryContext context, int lines) {
+    final MemTreeBuilder builder = new MemTreeBuilder(context);
+    builder.startDocument();
+    builder.startElement(new QName("text", XMLConstants.NULL_NS_URI), null);
+    for (int i = 0; i < lines; ++i) {
+      builder.startElement(new QName("p", XMLConstants.NULL_NS_URI), null);
+      builder.characters(TEXT_LINE);
+      builder.endElement();
+    }
+    builder.endElement();
+    builder.endDocument();
+    return builder.getDocument();
+  }
+
+  // Call ixml:invisible-xml or ixml:transparent-invisible-xml, and prepare the returned function for calls.
+  static FunctionReference generate(BasicFunction function, String grammar) throws XPathException {
+    return generate(function, grammar, Collections.emptyMap());
+  }
+
+  // Call ixml:invisible-xml or ixml:transparent-invisible-xml with options, and prepare the returned function for calls.
+  static FunctionReference generate(BasicFunction function, String grammar, Map<String, String> options) throws XPathException {
+    final MapType optionsMap = new MapType(function.getContext());
+    for (Map.Entry<String, String> option : options.entrySet()) {
+      optionsMap.add(new StringValue(option.getKey()), new StringValue(option.getValue()));
+    }
+    final Sequence[] args = { new StringValue(grammar), optionsMap };
+    final FunctionReference parserFunction = (FunctionReference) function.eval(args, null);
+    parserFunction.analyze(new AnalyzeContextInfo(function.getContext()));
+    return parserFunction;
+  }
+
+  static Sequence call(FunctionReference parserFunction, Item input) throws XPathException {
+    return parserFunction.evalFunction(null, null, new Sequence[] { input.toSequence() });
+  }
+
+}
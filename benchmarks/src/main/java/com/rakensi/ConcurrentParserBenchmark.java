@@ -0,0 +1,57 @@
+package com.rakensi;
+
+import java.util.concurrent.TimeUnit;
+
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.FunctionReference;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One generated ixml parser function, called by many threads at the same time.
+ * The generated parser function is called directly, as eXist-db does when the function is called from several queries.
+ * Run this with different numbers of threads, for example `-t 1`, `-t 2`, `-t 4`, to see how the throughput scales.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(Threads.MAX)
+public class ConcurrentParserBenchmark
+{
+
+  @Param({"10", "1000"})
+  public int lines;
+
+  private BasicFunction ixmlParser;
+  private Sequence[] args;
+
+  @Setup
+  public void setup() throws Exception {
+    final XQueryContext context = BenchmarkSupport.newContext();
+    final FunctionReference parserFunction = BenchmarkSupport.generate(new FnInvisibleXml(context, FnInvisibleXml.FS_INVISIBLE_XML), BenchmarkSupport.CSV_GRAMMAR);
+    ixmlParser = (BasicFunction) parserFunction.getCall().getFunction().getFunctionBody();
+    args = new Sequence[] { new StringValue(BenchmarkSupport.csvInput(lines)) };
+  }
+
+  @Benchmark
+  public Sequence parse() throws Exception {
+    return ixmlParser.eval(args, null);
+  }
+
+}
@@ -0,0 +1,51 @@
+package com.rakensi;
+
+import java.util.concurrent.TimeUnit;
+
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.FunctionReference;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The parser function returned by ixml:invisible-xml, from input string to result document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IxmlParserBenchmark
+{
+
+  @Param({"10", "1000"})
+  public int lines;
+
+  private FunctionReference parserFunction;
+  private StringValue input;
+
+  @Setup
+  public void setup() throws Exception {
+    final XQueryContext context = BenchmarkSupport.newContext();
+    parserFunction = BenchmarkSupport.generate(new FnInvisibleXml(context, FnInvisibleXml.FS_INVISIBLE_XML), BenchmarkSupport.CSV_GRAMMAR);
+    input = new StringValue(BenchmarkSupport.csvInput(lines));
+  }
+
+  @Benchmark
+  public Sequence parse() throws Exception {
+    return BenchmarkSupport.call(parserFunction, input);
+  }
+
+}
@@ -0,0 +1,80 @@
+package com.rakensi;
+
+import java.util.concurrent.TimeUnit;
+
+import org.exist.dom.memtree.DocumentImpl;
+import org.exist.dom.memtree.NodeImpl;
+import org.exist.dom.memtree.SAXAdapter;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.Sequence;
+import org.greenmercury.smax.SmaxDocument;
+import org.greenmercury.smax.convert.DomElement;
+import org.greenmercury.smax.convert.SAX;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Element;
+
+/**
+ * The conversions between eXist-db in-memory nodes and SMAX documents, as done for tixml node input and output.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SmaxConversionBenchmark
+{
+
+  @Param({"10", "1000"})
+  public int lines;
+
+  private XQueryContext context;
+  private DocumentImpl document;
+  private SmaxDocument smaxDocument;
+
+  @Setup
+  public void setup() throws Exception {
+    context = BenchmarkSupport.newContext();
+    document = BenchmarkSupport.textDocument(context, lines);
+    smaxDocument = DomElement.toSmax(wrapper());
+  }
+
+  private Element wrapper() {
+    final Element wrapper = new VerySimpleElementImpl("wrapper");
+    wrapper.appendChild(document.getFirstChild());
+    return wrapper;
+  }
+
+  @Benchmark
+  public SmaxDocument toSmax() throws Exception {
+    return DomElement.toSmax(wrapper());
+  }
+
+  @Benchmark
+  public SmaxDocument toSmaxStreamed() throws Exception {
+    return SmaxReceiver.toSmax((NodeImpl<?>) document.getFirstChild(), "wrapper", null);
+  }
+
+  @Benchmark
+  public DocumentImpl fromSmax() throws Exception {
+    final SAXAdapter saxAdapter = new SAXAdapter(context);
+    SAX.fromSMAX(smaxDocument, saxAdapter);
+    return saxAdapter.getDocument();
+  }
+
+  @Benchmark
+  public Sequence fromSmaxDirect() {
+    return SmaxMemTreeBuilder.build(smaxDocument, context);
+  }
+
+}
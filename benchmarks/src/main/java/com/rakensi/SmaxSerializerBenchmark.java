@@ -0,0 +1,67 @@
+package com.rakensi;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.greenmercury.smax.SmaxDocument;
+import org.greenmercury.smax.SmaxElement;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.bottlecaps.markup.Blitz;
+import de.bottlecaps.markup.blitz.Option;
+import de.bottlecaps.markup.blitz.Parser;
+
+/**
+ * SmaxSerializer in isolation. The parser events are recorded once, and replayed into a new serializer for every operation.
+ * Run with `-prof gc` to see the allocation rate per operation.
+ * The baseline is the serializer from before the per-character allocations were removed, so both can be compared in one run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SmaxSerializerBenchmark
+{
+
+  @Param({"10", "1000"})
+  public int lines;
+
+  private String input;
+  private ParseEvents parseEvents;
+
+  @Setup
+  public void setup() throws Exception {
+    final Map<Option, Object> options = new HashMap<>();
+    options.put(Option.FAIL_ON_ERROR, true);
+    final Parser parser = Blitz.generate(BenchmarkSupport.TIXML_DATE_GRAMMAR, options);
+    input = BenchmarkSupport.textInput(lines);
+    parseEvents = new ParseEvents();
+    parser.parse(input, parseEvents);
+  }
+
+  @Benchmark
+  public SmaxDocument serialize() {
+    final SmaxElement wrapper = new SmaxElement("wrapper").setStartPos(0).setEndPos(input.length());
+    return parseEvents.replay(new SmaxSerializer(new SmaxDocument(wrapper, input)));
+  }
+
+  @Benchmark
+  public SmaxDocument serializeBaseline() {
+    final SmaxElement wrapper = new SmaxElement("wrapper").setStartPos(0).setEndPos(input.length());
+    return parseEvents.replay(new BaselineSmaxSerializer(new SmaxDocument(wrapper, input)));
+  }
+
+}
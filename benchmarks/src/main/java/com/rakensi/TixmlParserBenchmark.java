@@ -0,0 +1,65 @@
+package com.rakensi;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.exist.dom.memtree.DocumentImpl;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.FunctionReference;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The parser function returned by ixml:transparent-invisible-xml, for string and node input.
+ * The output is the marked-up input ('xml'), or the spans of the nonterminals ('spans').
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TixmlParserBenchmark
+{
+
+  @Param({"10", "1000"})
+  public int lines;
+
+  @Param({"xml", "spans"})
+  public String output;
+
+  private FunctionReference parserFunction;
+  private StringValue stringInput;
+  private DocumentImpl nodeInput;
+
+  @Setup
+  public void setup() throws Exception {
+    final XQueryContext context = BenchmarkSupport.newContext();
+    parserFunction = BenchmarkSupport.generate(new FnTransparentInvisibleXml(context, FnTransparentInvisibleXml.FS_TRANSPARENT_INVISIBLE_XML), BenchmarkSupport.TIXML_DATE_GRAMMAR,
+        Map.of(ExtensionFunctionsModule.OUTPUT_OPTION, output));
+    stringInput = new StringValue(BenchmarkSupport.textInput(lines));
+    nodeInput = BenchmarkSupport.textDocument(context, lines);
+  }
+
+  @Benchmark
+  public Sequence parseString() throws Exception {
+    return BenchmarkSupport.call(parserFunction, stringInput);
+  }
+
+  @Benchmark
+  public Sequence parseNode() throws Exception {
+    return BenchmarkSupport.call(parserFunction, nodeInput);
+  }
+
+}
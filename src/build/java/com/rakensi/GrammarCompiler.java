@@ -0,0 +1,95 @@
+package com.rakensi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Checks and packages grammars at build time. This is run by the Maven build, in the process-classes phase.
+ * It is compiled from src/build/java into a directory of its own, so it is not part of the jar or the XAR.
+ *   java com.rakensi.GrammarCompiler <source directory> <classes directory>
+ * Each grammar in the source directory is an ixml file, optionally with its options in a properties file with the same name.
+ * A parser is generated for each grammar, so grammar errors and invalid options fail the build.
+ * The grammars are copied to the resource directory of {@link GrammarRegistry}, where they are loaded as packaged grammars.
+ */
+public final class GrammarCompiler
+{
+
+  private static final org.apache.logging.log4j.Logger logger = org.apache.logging.log4j.LogManager.getLogger(GrammarCompiler.class);
+
+  private static final String GRAMMAR_EXTENSION = ".ixml";
+  private static final String OPTIONS_EXTENSION = ".properties";
+
+  private GrammarCompiler() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      throw new IllegalArgumentException("Usage: GrammarCompiler <source directory> <classes directory>");
+    }
+    final Path sourceDirectory = Paths.get(args[0]);
+    final Path targetDirectory = Paths.get(args[1]).resolve(GrammarRegistry.class.getPackageName().replace('.', '/')).resolve(GrammarRegistry.PACKAGED_GRAMMARS);
+    final List<String> names = new ArrayList<>();
+    final List<String> errors = new ArrayList<>();
+    if (Files.isDirectory(sourceDirectory)) {
+      try (Stream<Path> files = Files.list(sourceDirectory)) {
+        for (Path grammarFile : files.filter(file -> file.getFileName().toString().endsWith(GRAMMAR_EXTENSION)).sorted().collect(Collectors.toList())) {
+          final String fileName = grammarFile.getFileName().toString();
+          final String name = fileName.substring(0, fileName.length() - GRAMMAR_EXTENSION.length());
+          final String error = compile(name, grammarFile, sourceDirectory.resolve(name + OPTIONS_EXTENSION));
+          if (error == null) {
+            names.add(name);
+          } else {
+            errors.add(grammarFile + ": " + error);
+          }
+        }
+      }
+    }
+    if (!errors.isEmpty()) {
+      throw new IllegalStateException("Invalid grammars:" + System.lineSeparator() + String.join(System.lineSeparator(), errors));
+    }
+    Files.createDirectories(targetDirectory);
+    for (String name : names) {
+      Files.copy(sourceDirectory.resolve(name + GRAMMAR_EXTENSION), targetDirectory.resolve(name + GRAMMAR_EXTENSION), StandardCopyOption.REPLACE_EXISTING);
+      final Path optionsFile = sourceDirectory.resolve(name + OPTIONS_EXTENSION);
+      if (Files.exists(optionsFile)) {
+        Files.copy(optionsFile, targetDirectory.resolve(name + OPTIONS_EXTENSION), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    Files.write(targetDirectory.resolve(GrammarRegistry.PACKAGED_GRAMMARS_INDEX), names, StandardCharsets.UTF_8);
+    logger.info("Packaged " + names.size() + " ixml grammars in " + targetDirectory);
+  }
+
+  // Generate a parser for a grammar, and return the error message if that fails.
+  private static String compile(String name, Path grammarFile, Path optionsFile) {
+    if (!GrammarRegistry.isValidName(name)) {
+      return "Invalid grammar name \"" + name + "\"";
+    }
+    try {
+      final Map<String, String> options;
+      if (Files.exists(optionsFile)) {
+        try (InputStream optionsStream = Files.newInputStream(optionsFile)) {
+          options = GrammarRegistry.readOptions(optionsStream);
+        }
+      } else {
+        options = GrammarRegistry.readOptions(null);
+      }
+      final long startTime = System.currentTimeMillis();
+      ExtensionFunctionsModule.newParser(Files.readString(grammarFile, StandardCharsets.UTF_8), ExtensionFunctionsModule.parseOptions(options));
+      logger.info("Generated a parser for grammar " + name + " in " + (System.currentTimeMillis() - startTime) + " ms");
+      return null;
+    } catch (Exception e) {
+      return e.getMessage();
+    }
+  }
+
+}
@@ -0,0 +1,289 @@
+package com.rakensi;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.bottlecaps.markup.blitz.Errors;
+import de.bottlecaps.markup.blitz.Serializer;
+
+/**
+ * A Markup Blitz serializer that encodes the parser events in a compact binary format, which can be decoded into nodes later.
+ * The format is the bytes 'I', 'X', 'E', 'V' and a version byte, followed by events.
+ * Each event is an event code byte with its arguments. Numbers are unsigned LEB128 varints, and strings are a length and UTF-8 bytes.
+ * <pre>
+ *   NAME name-string           defines the next element or attribute name; names are numbered from 0
+ *   START_NONTERMINAL name-number
+ *   END_NONTERMINAL
+ *   START_ATTRIBUTE name-number
+ *   END_ATTRIBUTE
+ *   TEXT text-string           consecutive terminals
+ *   EXCLUDED length
+ *   END                        the last event
+ * </pre>
+ */
+public class BinaryEventSerializer implements Serializer<byte[]>
+{
+
+  private static final byte[] MAGIC = {'I', 'X', 'E', 'V'};
+  private static final int VERSION = 1;
+
+  static final int NAME = 0;
+  static final int START_NONTERMINAL = 1;
+  static final int END_NONTERMINAL = 2;
+  static final int START_ATTRIBUTE = 3;
+  static final int END_ATTRIBUTE = 4;
+  static final int TEXT = 5;
+  static final int EXCLUDED = 6;
+  static final int END = 7;
+
+  private static final String IXML_STATE_ATTRIBUTE = "ixml:state";
+  private static final String IXML_STATE_FAILED = "failed";
+
+  private final ByteArrayOutputStream out;
+  private final Map<String, Integer> nameIndexes;
+  private final StringBuilder text;
+  private String attributeName;
+  private int elementCount;
+  private boolean failed;
+
+  public BinaryEventSerializer() {
+    out = new ByteArrayOutputStream();
+    out.write(MAGIC, 0, MAGIC.length);
+    out.write(VERSION);
+    nameIndexes = new HashMap<>();
+    text = new StringBuilder();
+    attributeName = null;
+    elementCount = 0;
+    failed = false;
+  }
+
+  @Override
+  public void startNonterminal(String name) {
+    flushText();
+    final int nameIndex = nameIndex(name);
+    out.write(START_NONTERMINAL);
+    writeNumber(nameIndex);
+    ++elementCount;
+  }
+
+  @Override
+  public void endNonterminal(String name) {
+    flushText();
+    out.write(END_NONTERMINAL);
+  }
+
+  @Override
+  public void startAttribute(String name) {
+    flushText();
+    final int nameIndex = nameIndex(name);
+    out.write(START_ATTRIBUTE);
+    writeNumber(nameIndex);
+    attributeName = name;
+  }
+
+  @Override
+  public void endAttribute() {
+    if (IXML_STATE_ATTRIBUTE.equals(attributeName) && text.indexOf(IXML_STATE_FAILED) >= 0) {
+      failed = true;
+    }
+    flushText();
+    out.write(END_ATTRIBUTE);
+    attributeName = null;
+  }
+
+  @Override
+  public void terminal(int codepoint) {
+    if (! XmlChars.isXmlChar(codepoint))
+      Errors.D04.thro(Character.toString(codepoint));
+    text.appendCodePoint(codepoint);
+  }
+
+  @Override
+  public void excluded(int length)
+  {
+    flushText();
+    out.write(EXCLUDED);
+    writeNumber(length);
+  }
+
+  @Override
+  public byte[] getSerialization()
+  {
+    flushText();
+    out.write(END);
+    return out.toByteArray();
+  }
+
+  /**
+   * The number of elements in the result.
+   */
+  public int getElementCount() {
+    return elementCount;
+  }
+
+  /**
+   * Whether the result reports that the input could not be parsed, which happens when 'fail-on-error' is not set.
+   */
+  public boolean isFailed() {
+    return failed;
+  }
+
+  /**
+   * Decode binary parser events, and send them to another serializer.
+   * @param events The events, as returned by {@link #getSerialization()}.
+   * @param serializer The serializer that receives the events.
+   * @return The serialization of the receiving serializer.
+   * @throws IllegalArgumentException If the events are not in the binary format.
+   */
+  public static <T> T replay(byte[] events, Serializer<T> serializer) {
+    if (events.length < MAGIC.length + 1) {
+      throw new IllegalArgumentException("The binary parser events are too short");
+    }
+    for (int i = 0; i < MAGIC.length; ++i) {
+      if (events[i] != MAGIC[i]) {
+        throw new IllegalArgumentException("The data are not binary parser events");
+      }
+    }
+    if (events[MAGIC.length] != VERSION) {
+      throw new IllegalArgumentException("Unsupported version " + events[MAGIC.length] + " of binary parser events");
+    }
+    final Reader reader = new Reader(events, MAGIC.length + 1);
+    final List<String> names = new ArrayList<>();
+    // The names of the open nonterminals, which are not repeated in the END_NONTERMINAL events.
+    final Deque<String> openNonterminals = new ArrayDeque<>();
+    while (true) {
+      final int event = reader.readByte();
+      switch (event) {
+        case NAME:
+          names.add(reader.readString());
+          break;
+        case START_NONTERMINAL:
+          final String name = reader.readName(names);
+          openNonterminals.push(name);
+          serializer.startNonterminal(name);
+          break;
+        case END_NONTERMINAL:
+          if (openNonterminals.isEmpty()) {
+            throw new IllegalArgumentException("The binary parser events end a nonterminal that was not started");
+          }
+          serializer.endNonterminal(openNonterminals.pop());
+          break;
+        case START_ATTRIBUTE:
+          serializer.startAttribute(reader.readName(names));
+          break;
+        case END_ATTRIBUTE:
+          serializer.endAttribute();
+          break;
+        case TEXT:
+          final String text = reader.readString();
+          for (int i = 0; i < text.length(); ) {
+            final int codepoint = text.codePointAt(i);
+            serializer.terminal(codepoint);
+            i += Character.charCount(codepoint);
+          }
+          break;
+        case EXCLUDED:
+          serializer.excluded(reader.readNumber());
+          break;
+        case END:
+          return serializer.getSerialization();
+        default:
+          throw new IllegalArgumentException("Unknown event " + event + " in binary parser events");
+      }
+    }
+  }
+
+  // Names are defined by a NAME event before they are first used.
+  private int nameIndex(String name) {
+    Integer nameIndex = nameIndexes.get(name);
+    if (nameIndex == null) {
+      nameIndex = nameIndexes.size();
+      nameIndexes.put(name, nameIndex);
+      out.write(NAME);
+      writeString(name);
+    }
+    return nameIndex;
+  }
+
+  // Consecutive terminals are written as one TEXT event.
+  private void flushText() {
+    if (text.length() > 0) {
+      out.write(TEXT);
+      writeString(text.toString());
+      text.setLength(0);
+    }
+  }
+
+  private void writeString(String string) {
+    final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    writeNumber(bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private void writeNumber(int number) {
+    while ((number & ~0x7F) != 0) {
+      out.write((number & 0x7F) | 0x80);
+      number >>>= 7;
+    }
+    out.write(number);
+  }
+
+  /**
+   * Reads numbers and strings from binary parser events.
+   */
+  private static final class Reader {
+
+    private final byte[] bytes;
+    private int position;
+
+    Reader(byte[] bytes, int position) {
+      this.bytes = bytes;
+      this.position = position;
+    }
+
+    int readByte() {
+      if (position >= bytes.length) {
+        throw new IllegalArgumentException("The binary parser events end unexpectedly");
+      }
+      return bytes[position++] & 0xFF;
+    }
+
+    int readNumber() {
+      int number = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        final int b = readByte();
+        number |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return number;
+        }
+      }
+      throw new IllegalArgumentException("Invalid number in binary parser events");
+    }
+
+    String readString() {
+      final int length = readNumber();
+      if (length < 0 || length > bytes.length - position) {
+        throw new IllegalArgumentException("Invalid string length in binary parser events");
+      }
+      final String string = new String(bytes, position, length, StandardCharsets.UTF_8);
+      position += length;
+      return string;
+    }
+
+    String readName(List<String> names) {
+      final int nameIndex = readNumber();
+      if (nameIndex < 0 || nameIndex >= names.size()) {
+        throw new IllegalArgumentException("Undefined name " + nameIndex + " in binary parser events");
+      }
+      return names.get(nameIndex);
+    }
+
+  }
+
+}
@@ -6,25 +6,55 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Field;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.input.UnsynchronizedByteArrayInputStream;
+import org.exist.EXistException;
 import org.exist.dom.QName;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
 import org.exist.xquery.AbstractInternalModule;
 import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.Expression;
 import org.exist.xquery.FunctionDSL;
 import org.exist.xquery.FunctionDef;
 import org.exist.xquery.FunctionSignature;
 import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.XQueryWatchDog;
 import org.exist.xquery.functions.map.MapType;
 import org.exist.xquery.value.AtomicValue;
+import org.exist.xquery.value.Base64BinaryValueType;
+import org.exist.xquery.value.BinaryValue;
+import org.exist.xquery.value.BinaryValueFromBinaryString;
+import org.exist.xquery.value.BinaryValueFromInputStream;
 import org.exist.xquery.value.BooleanValue;
 import org.exist.xquery.value.FunctionParameterSequenceType;
 import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.Item;
 import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.StringValue;
 import org.exist.xquery.value.Type;
@@ -32,6 +62,7 @@ import org.exist.xquery.value.Type;
 import de.bottlecaps.markup.Blitz;
 import de.bottlecaps.markup.BlitzException;
 import de.bottlecaps.markup.blitz.Option;
+import de.bottlecaps.markup.blitz.Parser;
 import io.lacuna.bifurcan.IEntry;
 
 /**
@@ -42,17 +73,112 @@ public class ExtensionFunctionsModule extends AbstractInternalModule {
     public static final String PREFIX = "ixml";
     public static final String RELEASED_IN_VERSION = "eXist-6.2.0";
 
+    private static final org.apache.logging.log4j.Logger logger = org.apache.logging.log4j.LogManager.getLogger(ExtensionFunctionsModule.class);
+
     // The location of the ixml grammar.
     private static final String IXML_GRAMMAR_RESOURCE = "ixml.ixml";
 
+    // The size of the buffer for decoding binary input.
+    private static final int INPUT_BUFFER_SIZE = 65536;
+
+    // The ixml grammar and its parser, initialized when they are first used.
+    private static volatile String ixmlGrammar;
+    private static volatile String ixmlGrammarHash;
+    private static volatile Parser ixmlParser;
+    // The number of conflicts in the tables of the ixml parser, which is set before the parser.
+    private static volatile int ixmlParserConflicts;
+
+    // The module parameter for the maximum number of cached parsers.
+    public static final String PARSER_CACHE_SIZE_PARAMETER = "parser-cache-size";
+
+    // The generated parsers, shared by all instances of this module.
+    private static final ParserCache PARSER_CACHE = new ParserCache(ParserCache.DEFAULT_MAX_SIZE);
+
+    // The parser statistics, shared by all instances of this module, and registered as a JMX MBean by the first instance.
+    private static final ParserStatistics STATISTICS = new ParserStatistics(PARSER_CACHE);
+    private static final String STATISTICS_MBEAN_NAME = "com.rakensi.ixml:type=ParserStatistics";
+
+    // The module parameter for the directory where registered grammars are stored.
+    public static final String GRAMMAR_DIRECTORY_PARAMETER = "grammar-directory";
+
+    // The default directory for registered grammars, within the eXist-db data directory.
+    private static final String DEFAULT_GRAMMAR_DIRECTORY = "ixml-grammars";
+
+    // The registered grammars, shared by all instances of this module. This is initialized by the first instance.
+    private static GrammarRegistry grammarRegistry;
+    // Whether the unfinished tagging jobs have been continued. This is guarded by the class lock, like the grammar registry.
+    private static boolean jobsResumed;
+
     // register the functions of the module
     public static final FunctionDef[] functions = functionDefs(
         functionDefs(FnInvisibleXml.class, FnInvisibleXml.FS_INVISIBLE_XML),
-        functionDefs(FnTransparentInvisibleXml.class, FnTransparentInvisibleXml.FS_TRANSPARENT_INVISIBLE_XML)
+        functionDefs(FnTransparentInvisibleXml.class, FnTransparentInvisibleXml.FS_TRANSPARENT_INVISIBLE_XML),
+        functionDefs(FnRegisterGrammar.class, FnRegisterGrammar.FS_REGISTER_GRAMMAR),
+        functionDefs(FnParser.class, FnParser.FS_PARSER),
+        functionDefs(FnParseAll.class, FnParseAll.FS_PARSE_ALL),
+        functionDefs(FnStats.class, FnStats.FS_STATS),
+        functionDefs(FnDecodeEvents.class, FnDecodeEvents.FS_DECODE_EVENTS),
+        functionDefs(FnTixmlPipeline.class, FnTixmlPipeline.FS_TIXML_PIPELINE),
+        functionDefs(FnTagCollection.class, FnTagCollection.FS_TAG_COLLECTION),
+        functionDefs(FnJobs.class, FnJobs.FS_JOBS)
     );
 
     public ExtensionFunctionsModule(final Map<String, List<? extends Object>> parameters) {
         super(functions, parameters);
+        final List<? extends Object> parserCacheSize = getParameter(PARSER_CACHE_SIZE_PARAMETER);
+        if (parserCacheSize != null && !parserCacheSize.isEmpty()) {
+            try {
+                PARSER_CACHE.setMaxSize(Integer.parseInt(parserCacheSize.get(0).toString().trim()));
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid value for module parameter " + PARSER_CACHE_SIZE_PARAMETER + ": " + parserCacheSize.get(0));
+            }
+        }
+        synchronized (ExtensionFunctionsModule.class) {
+            if (grammarRegistry == null) {
+                grammarRegistry = new GrammarRegistry(getGrammarDirectory());
+                grammarRegistry.open();
+                registerStatisticsMBean();
+            }
+            // Continue the tagging jobs that were not finished when eXist-db stopped, as soon as the database is ready.
+            if (!jobsResumed) {
+                jobsResumed = TagCollectionJob.resume(grammarRegistry.getDirectory());
+            }
+        }
+    }
+
+    // Make the parser statistics available through JMX.
+    private static void registerStatisticsMBean() {
+        try {
+            final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(STATISTICS_MBEAN_NAME);
+            if (mBeanServer.isRegistered(name)) {
+                // This happens when the package is installed again.
+                mBeanServer.unregisterMBean(name);
+            }
+            mBeanServer.registerMBean(STATISTICS, name);
+        } catch (JMException e) {
+            logger.warn("Cannot register the parser statistics MBean " + STATISTICS_MBEAN_NAME, e);
+        }
+    }
+
+    // The grammar directory is a module parameter, or a directory in the eXist-db data directory.
+    private Path getGrammarDirectory() {
+        final List<? extends Object> grammarDirectory = getParameter(GRAMMAR_DIRECTORY_PARAMETER);
+        if (grammarDirectory != null && !grammarDirectory.isEmpty()) {
+            return Paths.get(grammarDirectory.get(0).toString().trim());
+        }
+        try {
+            if (BrokerPool.isConfigured()) {
+                final Object dataDirectory = BrokerPool.getInstance().getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR);
+                if (dataDirectory instanceof Path) {
+                    return ((Path) dataDirectory).resolve(DEFAULT_GRAMMAR_DIRECTORY);
+                }
+            }
+        } catch (EXistException e) {
+            logger.warn("Cannot find the data directory for registered grammars", e);
+        }
+        logger.warn("Registered grammars will not be stored, because there is no grammar directory");
+        return null;
     }
 
     @Override
@@ -85,24 +211,295 @@ public class ExtensionFunctionsModule extends AbstractInternalModule {
 
     /* Common functions for ixml and tixml */
 
+    // Options that are handled by this module, and not passed to Markup Blitz.
+    public static final String ENCODING_OPTION = "encoding";
+    public static final String RECORD_SEPARATOR_OPTION = "record-separator";
+    public static final String WRITE_BACK_OPTION = "write-back";
+    public static final String TRACE_OUTPUT_OPTION = "trace-output";
+    public static final String MAX_INPUT_LENGTH_OPTION = "max-input-length";
+    public static final String TIMEOUT_OPTION = "timeout";
+    public static final String SELECT_OPTION = "select";
+    public static final String OUTPUT_OPTION = "output";
+    public static final String XML_OUTPUT = "xml";
+    public static final String BINARY_OUTPUT = "binary";
+    public static final String SPANS_OUTPUT = "spans";
+    public static final String PRIORITY_OPTION = "priority";
+    public static final String INCLUDE_OPTION = "include";
+    public static final String EXCLUDE_OPTION = "exclude";
+    private static final Set<String> MODULE_OPTIONS = Set.of(ENCODING_OPTION, RECORD_SEPARATOR_OPTION, WRITE_BACK_OPTION, TRACE_OUTPUT_OPTION,
+        MAX_INPUT_LENGTH_OPTION, TIMEOUT_OPTION, SELECT_OPTION, OUTPUT_OPTION, PRIORITY_OPTION, INCLUDE_OPTION, EXCLUDE_OPTION);
+
     // Get Markup Blitz options from the `$options as map(*)` parameter.
     public static Map<Option, Object> getOptions(final MapType options) throws XPathException {
+      return parseOptions(getOptionStrings(options));
+    }
+
+    // Get Markup Blitz options from option names and values. Options that are handled by this module are skipped.
+    public static Map<Option, Object> parseOptions(final Map<String, String> options) throws XPathException {
       HashMap<Option, Object> optionsMap = new HashMap<Option, Object>();
+      for (Map.Entry<String, String> entry : options.entrySet()) {
+        String key = entry.getKey();
+        if (MODULE_OPTIONS.contains(key)) {
+          continue;
+        }
+        String value = entry.getValue();
+        if (!Option.addTo(optionsMap, key, value)) {
+          throw new XPathException(ErrorCodes.ERROR, "Unsupported option \"" + key + "\": \"" + value + "\"");
+        }
+      }
+      return optionsMap;
+    }
+
+    // Get the option names and values from the `$options as map(*)` parameter.
+    public static Map<String, String> getOptionStrings(final MapType options) throws XPathException {
+      LinkedHashMap<String, String> optionStrings = new LinkedHashMap<String, String>();
       if (options != null) {
         for (Iterator<IEntry<AtomicValue, Sequence>> it = options.iterator(); it.hasNext();) {
           IEntry<AtomicValue, Sequence> entry = it.next();
-          String key = entry.key().getStringValue();
-          String value = entry.value().getStringValue();
-          if (!Option.addTo(optionsMap, key, value)) {
-            throw new XPathException(ErrorCodes.ERROR, "Unsupported option \"" + key + "\": \"" + value + "\"");
+          optionStrings.put(entry.key().getStringValue(), entry.value().getStringValue());
+        }
+      }
+      return optionStrings;
+    }
+
+    // Get the character encoding of binary input from the options.
+    public static Charset getEncoding(final Map<String, String> options) throws XPathException {
+      final String encoding = options.get(ENCODING_OPTION);
+      if (encoding == null) {
+        return StandardCharsets.UTF_8;
+      }
+      try {
+        return Charset.forName(encoding);
+      } catch (IllegalArgumentException e) {
+        throw new XPathException(ErrorCodes.ERROR, "Unsupported encoding \"" + encoding + "\"", e);
+      }
+    }
+
+    // Get a boolean option handled by this module, which is false if it is absent.
+    public static boolean getBooleanOption(final Map<String, String> options, final String name) throws XPathException {
+      final String value = options.get(name);
+      if (value == null || value.equals("false")) {
+        return false;
+      } else if (value.equals("true")) {
+        return true;
+      }
+      throw new XPathException(ErrorCodes.ERROR, "The option \"" + name + "\" must be true or false, not \"" + value + "\"");
+    }
+
+    // Get the element names from the 'select' option, which are separated by whitespace, or null if all elements are selected.
+    public static Set<String> getSelect(final Map<String, String> options) throws XPathException {
+      final String select = options.get(SELECT_OPTION);
+      if (select == null) {
+        return null;
+      }
+      if (select.isBlank()) {
+        throw new XPathException(ErrorCodes.ERROR, "The option \"" + SELECT_OPTION + "\" must have at least one element name");
+      }
+      return new HashSet<>(Arrays.asList(select.trim().split("\\s+")));
+    }
+
+    // Whether trace output is returned with the result in a map ('map'), or logged ('log', the default).
+    public static boolean isTraceOutputMap(final Map<String, String> options) throws XPathException {
+      final String traceOutput = options.get(TRACE_OUTPUT_OPTION);
+      if (traceOutput == null || traceOutput.equals("log")) {
+        return false;
+      } else if (traceOutput.equals("map")) {
+        return true;
+      }
+      throw new XPathException(ErrorCodes.ERROR, "The option \"" + TRACE_OUTPUT_OPTION + "\" must be 'log' or 'map', not \"" + traceOutput + "\"");
+    }
+
+    // Get the kind of parser output, which is 'xml' (the default) or one of the other supported outputs.
+    public static String getOutput(final Map<String, String> options, final String... otherOutputs) throws XPathException {
+      final String output = options.get(OUTPUT_OPTION);
+      if (output == null || output.equals(XML_OUTPUT)) {
+        return XML_OUTPUT;
+      } else if (Arrays.asList(otherOutputs).contains(output)) {
+        return output;
+      }
+      throw new XPathException(ErrorCodes.ERROR, "The option \"" + OUTPUT_OPTION + "\" must be '" + XML_OUTPUT + "' or '" + String.join("' or '", otherOutputs) +
+          "', not \"" + output + "\"");
+    }
+
+    /**
+     * Make an xs:base64Binary value from binary parser events.
+     * The value reads the bytes directly, and is cleaned up with the query that calls the parser function.
+     * @param resultContext The context of the calling query, or null outside a query, where the value is made from a base64 string instead.
+     */
+    public static BinaryValue toBinaryValue(final Expression caller, final XQueryContext resultContext, final byte[] events) throws XPathException {
+      if (resultContext == null) {
+        return new BinaryValueFromBinaryString(caller, new Base64BinaryValueType(), Base64.getEncoder().encodeToString(events));
+      }
+      return BinaryValueFromInputStream.getInstance(resultContext, new Base64BinaryValueType(), new UnsynchronizedByteArrayInputStream(events), caller);
+    }
+
+    /**
+     * Get the context of the query that is running on the current thread, which is the query that calls a generated function.
+     * This is not always the query that made the function, because a function item can be kept, for example in a session,
+     * and called by a later query that runs on the same pooled thread.
+     * @param context The context of the query that made the function.
+     * @return The context of the calling query, or null if no query runs on the current thread, such as a parse thread.
+     */
+    public static XQueryContext callingContext(final XQueryContext context) {
+      final DBBroker broker = context.getBroker();
+      if (broker == null) {
+        return null;
+      }
+      final String threadName = Thread.currentThread().getName();
+      XQueryContext callingContext = null;
+      for (final XQueryWatchDog watchDog : broker.getBrokerPool().getProcessMonitor().getRunningXQueries()) {
+        if (threadName.equals(watchDog.getRunningThread())) {
+          if (watchDog.getContext() == context) {
+            return context;
           }
+          callingContext = watchDog.getContext();
         }
       }
-      return optionsMap;
+      return callingContext;
     }
 
-    // Read the ixml grammar from a resource.
+    // Get the bytes of a binary value.
+    public static byte[] getBytes(final BinaryValue value) throws XPathException {
+      try (InputStream in = value.getInputStream()) {
+        return in.readAllBytes();
+      } catch (IOException e) {
+        throw new XPathException(ErrorCodes.FODC0002, "The binary value cannot be read: " + e.getMessage(), e);
+      }
+    }
+
+    // Get the input for a parser, which is a string or binary data in the given encoding.
+    public static String getInputString(final Item input, final Charset encoding) throws XPathException {
+      if (!(input instanceof BinaryValue)) {
+        return input.getStringValue();
+      }
+      // Decode the binary data directly into the input string, reporting invalid data.
+      final CharsetDecoder decoder = encoding.newDecoder()
+          .onMalformedInput(CodingErrorAction.REPORT)
+          .onUnmappableCharacter(CodingErrorAction.REPORT);
+      try (Reader reader = new InputStreamReader(((BinaryValue) input).getInputStream(), decoder)) {
+        final StringBuilder inputString = new StringBuilder();
+        final char[] buffer = new char[INPUT_BUFFER_SIZE];
+        int length;
+        while ((length = reader.read(buffer)) >= 0) {
+          inputString.append(buffer, 0, length);
+        }
+        return inputString.toString();
+      } catch (IOException e) {
+        throw new XPathException(ErrorCodes.FODC0002, "The binary input cannot be read as " + encoding.name() + ": " + e.getMessage(), e);
+      }
+    }
+
+    // Generate a parser. Parsers are shared between threads, so the trace writer is set once, before the parser is shared.
+    static Parser newParser(final String grammar, final Map<Option, Object> options) {
+      final Parser parser = Blitz.generate(grammar, options);
+      parser.setTraceWriter(TraceSink.WRITER);
+      return parser;
+    }
+
+    // The fork table of Markup Blitz parsers, which has two actions for each conflict in the LR tables. This is null if it cannot be read.
+    private static final Field FORKS_FIELD = forksField();
+
+    private static Field forksField() {
+      try {
+        final Field forks = Parser.class.getDeclaredField("forks");
+        forks.setAccessible(true);
+        return forks;
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        logger.info("The conflicts of generated parsers cannot be counted with this version of Markup Blitz", e);
+        return null;
+      }
+    }
+
+    /**
+     * Count the conflicts in the LR tables of a generated parser.
+     * Markup Blitz only forks the parse stack on a conflict, so a parser without conflicts always parses deterministically,
+     * on a single stack, without building alternatives.
+     * This uses reflection, so it is called once for each generated parser, and the count is kept with the parser.
+     * @return The number of conflicts, or -1 if they cannot be counted.
+     */
+    static int countConflicts(final Parser parser) {
+      if (FORKS_FIELD == null) {
+        return -1;
+      }
+      try {
+        final int[] forks = (int[]) FORKS_FIELD.get(parser);
+        return forks == null ? 0 : forks.length / 2;
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        return -1;
+      }
+    }
+
+    // Get a generated parser for a grammar, from the cache if possible.
+    public static Parser generateParser(final String grammar, final Map<Option, Object> options) {
+      return PARSER_CACHE.get(grammar, options);
+    }
+
+    // Get a generated parser for a grammar with a known hash, counting cache hits and generations in the statistics.
+    public static Parser generateParser(final String grammarHash, final String grammar, final Map<Option, Object> options, final ParserStatistics.GrammarStatistics statistics) {
+      return PARSER_CACHE.get(grammarHash, grammar, options, statistics);
+    }
+
+    public static ParserStatistics getStatistics() {
+      return STATISTICS;
+    }
+
+    public static ParserCache getParserCache() {
+      return PARSER_CACHE;
+    }
+
+    public static synchronized GrammarRegistry getGrammarRegistry() {
+      return grammarRegistry;
+    }
+
+    // Get the ixml grammar, which is read only once.
     public static String getIxmlGrammar() throws XPathException {
+      String grammar = ixmlGrammar;
+      if (grammar == null) {
+        synchronized (ExtensionFunctionsModule.class) {
+          grammar = ixmlGrammar;
+          if (grammar == null) {
+            ixmlGrammarHash = ParserCache.hash(grammar = readIxmlGrammar());
+            ixmlGrammar = grammar;
+          }
+        }
+      }
+      return grammar;
+    }
+
+    // Get the hash of the ixml grammar, which is computed only once.
+    public static String getIxmlGrammarHash() throws XPathException {
+      getIxmlGrammar();
+      return ixmlGrammarHash;
+    }
+
+    // Get a parser for the ixml grammar. Without options, the parser is generated only once.
+    public static Parser getIxmlParser(final Map<Option, Object> options, final ParserStatistics.GrammarStatistics statistics) throws XPathException {
+      if (!options.isEmpty()) {
+        return generateParser(getIxmlGrammarHash(), getIxmlGrammar(), options, statistics);
+      }
+      Parser parser = ixmlParser;
+      if (parser == null) {
+        synchronized (ExtensionFunctionsModule.class) {
+          parser = ixmlParser;
+          if (parser == null) {
+            final long startTime = System.nanoTime();
+            parser = newParser(getIxmlGrammar(), options);
+            final long generationTime = System.nanoTime() - startTime;
+            ixmlParserConflicts = countConflicts(parser);
+            ixmlParser = parser;
+            statistics.generated(generationTime);
+            statistics.setConflicts(ixmlParserConflicts);
+            return parser;
+          }
+        }
+      }
+      statistics.cacheHit();
+      statistics.setConflicts(ixmlParserConflicts);
+      return parser;
+    }
+
+    // Read the ixml grammar from a resource.
+    private static String readIxmlGrammar() throws XPathException {
       try (final InputStream ixmlGrammarStream = FnInvisibleXml.class.getClassLoader().getResourceAsStream(IXML_GRAMMAR_RESOURCE)) {
         if (ixmlGrammarStream == null) {
             throw new XPathException(ErrorCodes.FODC0002, "The ixml grammar resource cannot be found at "+IXML_GRAMMAR_RESOURCE);
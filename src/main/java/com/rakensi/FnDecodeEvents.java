@@ -0,0 +1,63 @@
+package com.rakensi;
+
+import static com.rakensi.ExtensionFunctionsModule.functionSignature;
+import static org.exist.xquery.FunctionDSL.optParam;
+import static org.exist.xquery.FunctionDSL.param;
+
+import java.util.Map;
+
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.BinaryValue;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.Type;
+
+/**
+ * Implementation of
+ *   decode-events(
+ *     $events   as xs:base64Binary,
+ *     $options  as map(*)?  := {}
+ *   )  as document-node()
+ * The events are made by a parser function with the option 'output': 'binary'.
+ */
+public class FnDecodeEvents extends BasicFunction
+{
+
+  private static final String FS_DECODE_EVENTS_NAME = "decode-events";
+
+  static final FunctionSignature FS_DECODE_EVENTS =
+      functionSignature(
+          FnDecodeEvents.FS_DECODE_EVENTS_NAME,
+          "Builds the result document from binary parser events, which are returned by an ixml parser with the option 'output': 'binary'.",
+          new FunctionReturnSequenceType(Type.DOCUMENT, Cardinality.EXACTLY_ONE, "The result document, as returned by the parser with the default output"),
+          param("events", Type.BASE64_BINARY, "The binary parser events"),
+          optParam("options", Type.MAP, "The options for building the document. The supported option is 'select', to build only some elements.")
+      );
+
+  public FnDecodeEvents(final XQueryContext context, final FunctionSignature signature) {
+      super(context, signature);
+  }
+
+  @Override
+  public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+      final Map<String, String> options;
+      if (args[1].isEmpty()) {
+        options = ExtensionFunctionsModule.getOptionStrings(null);
+      } else {
+        options = ExtensionFunctionsModule.getOptionStrings((MapType) args[1].itemAt(0));
+      }
+      final byte[] events = ExtensionFunctionsModule.getBytes((BinaryValue) args[0].itemAt(0));
+      try {
+        return BinaryEventSerializer.replay(events, new MemTreeSerializer(context, ExtensionFunctionsModule.getSelect(options)));
+      } catch (IllegalArgumentException e) {
+        throw new XPathException(this, ErrorCodes.ERROR, e.getMessage(), e);
+      }
+  }
+
+}
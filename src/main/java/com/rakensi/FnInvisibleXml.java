@@ -4,15 +4,11 @@ import static com.rakensi.ExtensionFunctionsModule.functionSignature;
 import static org.exist.xquery.FunctionDSL.optParam;
 import static org.exist.xquery.FunctionDSL.param;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
 
 import org.exist.dom.QName;
 import org.exist.xquery.BasicFunction;
@@ -26,19 +22,19 @@ import org.exist.xquery.FunctionFactory;
 import org.exist.xquery.FunctionSignature;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
-import org.exist.xquery.functions.fn.ParsingFunctions;
 import org.exist.xquery.functions.map.MapType;
-import org.exist.xquery.value.BooleanValue;
 import org.exist.xquery.value.FunctionReference;
 import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.Item;
 import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.StringValue;
 import org.exist.xquery.value.Type;
 
-import de.bottlecaps.markup.Blitz;
 import de.bottlecaps.markup.blitz.Option;
 import de.bottlecaps.markup.blitz.Parser;
 
+import com.rakensi.ParserStatistics.GrammarStatistics;
+
 /**
  * Implementation of
  *   invisible-xml(
@@ -46,9 +42,6 @@ import de.bottlecaps.markup.blitz.Parser;
  *     $options  as map(*)?  := {}
  *   )  as fn(xs:string) as item()
  * @see https://qt4cg.org/specifications/xpath-functions-40/Overview.html#ixml-functions
- *
- * To do:
- * - Use the Markup Blitz serializer instead of parsing serialized XML.
  */
 public class FnInvisibleXml extends BasicFunction
 {
@@ -61,47 +54,9 @@ public class FnInvisibleXml extends BasicFunction
           "Returns an ixml parser from a grammar. The parser returns an XML representation of the input string as parsed by the provided grammar.",
           new FunctionReturnSequenceType(Type.FUNCTION_REFERENCE, Cardinality.EXACTLY_ONE, "A function that can be used to parse an input string."),
           optParam("grammar", Type.ITEM, "The ixml grammar used to generate the parser"),
-          optParam("options", Type.MAP, "The options for the parser genarator and the parser itself. Supported options are 'fail-on-error', 'verbose', 'trace', 'timing'")
+          optParam("options", Type.MAP, "The options for the parser genarator and the parser itself. Supported options are 'fail-on-error', 'verbose', 'trace', 'timing', 'encoding' for binary input, 'record-separator' to parse each record separately, 'trace-output', 'max-input-length', 'timeout', 'select' to build only some elements, and 'output'.")
       );
 
-  // Make a logger, and a trace-writer for Markup Blitz.
-  private static final org.apache.logging.log4j.Logger logger = org.apache.logging.log4j.LogManager.getLogger(FnInvisibleXml.class);
-  private static final Writer logWriter = new Writer() {
-    StringBuffer buffer = new StringBuffer();
-    public int indexOf(char[] cbuf, char c, int off, int len) {
-      int maxPos = off + len;
-      for (int i = off; i < maxPos; i++) if (cbuf[i] == c) return i;
-      return -1;
-    }
-    @Override
-    public void write(char[] cbuf, int off, int len) throws IOException
-    {
-      int eolPos;
-      while ((eolPos = indexOf(cbuf, '\n', off, len)) >= 0) {
-        buffer.append(String.valueOf(cbuf, off, eolPos - off));
-        flush();
-        off = eolPos + 1;
-        len = len - (eolPos - off) - 1;
-      }
-      if (len > 0) {
-        buffer.append(String.valueOf(cbuf, off, len));
-      }
-    }
-    @Override
-    public void flush() throws IOException
-    {
-      if (buffer.length() > 0) {
-        logger.info(buffer);
-        buffer.delete(0, buffer.length());
-      }
-    }
-    @Override
-    public void close() throws IOException
-    {
-      flush();
-    }
-  };
-
   public FnInvisibleXml(final XQueryContext context, final FunctionSignature signature) {
       super(context, signature);
   }
@@ -109,45 +64,167 @@ public class FnInvisibleXml extends BasicFunction
   @Override
   public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
       // Handle $grammar and $options parameters.
-      final String grammar;
-      if (args[0].isEmpty()) {
-        grammar = ExtensionFunctionsModule.getIxmlGrammar();
+      final Map<String, String> optionStrings;
+      if (args[1].isEmpty()) {
+        optionStrings = ExtensionFunctionsModule.getOptionStrings(null);
       } else {
-        grammar = ((StringValue)args[0].itemAt(0)).getStringValue();
+        optionStrings = ExtensionFunctionsModule.getOptionStrings((MapType) args[1].itemAt(0));
       }
-      final Map<Option, Object> options;
-      if (args[1].isEmpty()) {
-        options = ExtensionFunctionsModule.getOptions(null);
+      final Map<Option, Object> options = ExtensionFunctionsModule.parseOptions(optionStrings);
+      // Get the Markup Blitz parser for the grammar, generating it if it is not cached.
+      final Parser parser;
+      final String grammarHash;
+      final GrammarStatistics statistics;
+      if (args[0].isEmpty()) {
+        grammarHash = ExtensionFunctionsModule.getIxmlGrammarHash();
+        statistics = ExtensionFunctionsModule.getStatistics().get(ParserStatistics.IXML, grammarHash);
+        parser = ExtensionFunctionsModule.getIxmlParser(options, statistics);
       } else {
-        options = ExtensionFunctionsModule.getOptions((MapType) args[1].itemAt(0));
+        final String grammar = ((StringValue)args[0].itemAt(0)).getStringValue();
+        grammarHash = ParserCache.hash(grammar);
+        statistics = ExtensionFunctionsModule.getStatistics().get(ParserStatistics.IXML, grammarHash);
+        parser = ExtensionFunctionsModule.generateParser(grammarHash, grammar, options, statistics);
+      }
+      return parserFunction(context, parser, grammarHash, optionStrings, statistics);
+  }
+
+  /**
+   * Make a function reference for a generated Markup Blitz parser.
+   * The options that are handled by this module, such as 'encoding', are taken from optionStrings.
+   * Parses are counted in statistics, and traced with the grammar hash in the correlation id.
+   */
+  static FunctionReference parserFunction(final XQueryContext context, final Parser parser, final String grammarHash, final Map<String, String> optionStrings, final GrammarStatistics statistics) throws XPathException {
+      final Charset encoding = ExtensionFunctionsModule.getEncoding(optionStrings);
+      final String recordSeparator = optionStrings.get(ExtensionFunctionsModule.RECORD_SEPARATOR_OPTION);
+      if (recordSeparator != null && recordSeparator.isEmpty()) {
+        throw new XPathException(ErrorCodes.ERROR, "The option \"" + ExtensionFunctionsModule.RECORD_SEPARATOR_OPTION + "\" must not be empty");
       }
-      // Generate the Markup Blitz parser for the grammar.
-      final Parser parser = Blitz.generate(grammar, options);
-      parser.setTraceWriter(logWriter);
-      // Make an IxmlParser function from the Markup Blitz parser. The signature is function(xs:string) as item()
+      final boolean traceToMap = ExtensionFunctionsModule.isTraceOutputMap(optionStrings);
+      final ParseLimits limits = ParseLimits.fromOptions(optionStrings);
+      final Set<String> select = ExtensionFunctionsModule.getSelect(optionStrings);
+      final boolean binaryOutput = ExtensionFunctionsModule.getOutput(optionStrings, ExtensionFunctionsModule.BINARY_OUTPUT).equals(ExtensionFunctionsModule.BINARY_OUTPUT);
+      if (binaryOutput && select != null) {
+        throw new XPathException(ErrorCodes.ERROR, "The option \"" + ExtensionFunctionsModule.SELECT_OPTION + "\" cannot be used with binary output, but it can be used with ixml:decode-events");
+      }
+      // Make an IxmlParser function from the Markup Blitz parser. The signature is function(xs:string) as item(), or item()* for records.
       FunctionSignature parserSignature = FunctionDSL.functionSignature(
           new QName("generated-ixml-parser", "https://invisiblexml.org/"),
           "Generated ixml parser, only used internally",
-          new FunctionReturnSequenceType(Type.ITEM, Cardinality.EXACTLY_ONE, "The result of parsing the input string"),
-          param("input", Type.STRING, "The input string")
+          recordSeparator == null
+            ? new FunctionReturnSequenceType(Type.ITEM, Cardinality.EXACTLY_ONE, "The result of parsing the input string")
+            : new FunctionReturnSequenceType(Type.ITEM, Cardinality.ZERO_OR_MORE, "The results of parsing the records in the input string"),
+          param("input", Type.ITEM, "The input string, or binary input in the encoding given by the 'encoding' option")
       );
-      final IxmlParser ixmlParser = new IxmlParser(context, parserSignature, parser);
+      final IxmlParser ixmlParser = new IxmlParser(context, parserSignature, parser, grammarHash, encoding, recordSeparator, traceToMap, limits, select, binaryOutput, statistics);
       // Make a function reference that can be used as the result.
       FunctionCall functionCall = FunctionFactory.wrap(context, ixmlParser);
       return new FunctionReference(functionCall);
   }
 
+  /**
+   * Get the Markup Blitz parser from a function reference made by parserFunction.
+   * @return The parser, or null if the item is not a generated ixml parser.
+   */
+  static Parser getParser(final Item item) {
+      final IxmlParser ixmlParser = getIxmlParser(item);
+      return ixmlParser == null ? null : ixmlParser.parser;
+  }
+
+  /**
+   * Get the statistics of the parser in a function reference made by parserFunction.
+   * @return The statistics, or null if the item is not a generated ixml parser.
+   */
+  static GrammarStatistics getStatistics(final Item item) {
+      final IxmlParser ixmlParser = getIxmlParser(item);
+      return ixmlParser == null ? null : ixmlParser.statistics;
+  }
+
+  /**
+   * Get the parse limits of the parser in a function reference made by parserFunction.
+   * @return The limits, or null if the item is not a generated ixml parser.
+   */
+  static ParseLimits getLimits(final Item item) {
+      final IxmlParser ixmlParser = getIxmlParser(item);
+      return ixmlParser == null ? null : ixmlParser.limits;
+  }
+
+  /**
+   * Get the selected element names of the parser in a function reference made by parserFunction.
+   * @return The element names, or null if all elements are selected or the item is not a generated ixml parser.
+   */
+  static Set<String> getSelect(final Item item) {
+      final IxmlParser ixmlParser = getIxmlParser(item);
+      return ixmlParser == null ? null : ixmlParser.select;
+  }
+
+  /**
+   * Whether the parser in a function reference made by parserFunction returns binary parser events.
+   */
+  static boolean isBinaryOutput(final Item item) {
+      final IxmlParser ixmlParser = getIxmlParser(item);
+      return ixmlParser != null && ixmlParser.binaryOutput;
+  }
+
+  /**
+   * Whether the parser in a function reference made by parserFunction returns its trace output in a map.
+   */
+  static boolean isTraceOutputMap(final Item item) {
+      final IxmlParser ixmlParser = getIxmlParser(item);
+      return ixmlParser != null && ixmlParser.traceToMap;
+  }
+
+  /**
+   * Get the grammar hash of the parser in a function reference made by parserFunction.
+   * @return The grammar hash, or null if the item is not a generated ixml parser.
+   */
+  static String getGrammarHash(final Item item) {
+      final IxmlParser ixmlParser = getIxmlParser(item);
+      return ixmlParser == null ? null : ixmlParser.grammarHash;
+  }
+
+  private static IxmlParser getIxmlParser(final Item item) {
+      if (item instanceof FunctionReference) {
+        final Expression functionBody = ((FunctionReference) item).getCall().getFunction().getFunctionBody();
+        if (functionBody instanceof IxmlParser) {
+          return (IxmlParser) functionBody;
+        }
+      }
+      return null;
+  }
+
   /**
    * A BasicFunction for the generated ixml parser.
+   * The function can be called by several threads at the same time, for example when it is kept in a global variable.
+   * The Markup Blitz parser keeps the state of a parse in a parsing context of its own, so the parser tables are shared safely,
+   * and all other state of a call is local to the call.
    */
   private static final class IxmlParser extends BasicFunction {
 
-    private Parser parser;
+    private final Parser parser;
+    private final String grammarHash;
+    private final Charset encoding;
+    private final String recordSeparator;
+    private final boolean traceToMap;
+    private final ParseLimits limits;
+    // The names of the elements that are built, or null if all elements are built.
+    private final Set<String> select;
+    // Whether the result is binary parser events, instead of a document.
+    private final boolean binaryOutput;
+    private final GrammarStatistics statistics;
 
-    public IxmlParser(XQueryContext context, FunctionSignature signature, Parser parser) throws XPathException
+    public IxmlParser(XQueryContext context, FunctionSignature signature, Parser parser, String grammarHash, Charset encoding, String recordSeparator, boolean traceToMap,
+        ParseLimits limits, Set<String> select, boolean binaryOutput, GrammarStatistics statistics) throws XPathException
     {
         super(context, signature);
         this.parser = parser;
+        this.grammarHash = grammarHash;
+        this.encoding = encoding;
+        this.recordSeparator = recordSeparator;
+        this.traceToMap = traceToMap;
+        this.limits = limits;
+        this.select = select;
+        this.binaryOutput = binaryOutput;
+        this.statistics = statistics;
         // We must set the arguments, which is not done automatically from the signature.
         final List<Expression> ixmlParserArgs = new ArrayList<>(1);
         ixmlParserArgs.add(new Function.Placeholder(context));
@@ -157,14 +234,76 @@ public class FnInvisibleXml extends BasicFunction
     @Override
     public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException
     {
-        final String input = ((StringValue)args[0].itemAt(0)).getStringValue();
-        // Parse the input string.
-        final String output = parser.parse(input);
-        // The output is serialized XML, which we need to parse.
-        ParsingFunctions xmlParser = new ParsingFunctions(context, ParsingFunctions.signatures[0]);
-        final Sequence[] xmlParserArgs = new Sequence[1];
-        xmlParserArgs[0] = new StringValue(output).toSequence();
-        return xmlParser.eval(xmlParserArgs, contextSequence);
+        final String input = ExtensionFunctionsModule.getInputString(args[0].itemAt(0), encoding);
+        // The results are built in the context of the calling query, which may not be the query that made this function.
+        final XQueryContext callingContext = ExtensionFunctionsModule.callingContext(context);
+        final String correlationId = TraceSink.correlationId(callingContext, grammarHash);
+        // Trace output is collected here if it is returned, and logged otherwise.
+        final List<String> traceLines = traceToMap ? new ArrayList<>() : null;
+        final Sequence result;
+        if (recordSeparator != null) {
+          // Parse each record on its own, in parallel.
+          limits.checkInputLength(this, input.length());
+          result = FnParseAll.parseAll(this, callingContext, parser, splitRecords(input), limits, select, binaryOutput, statistics, correlationId, traceLines);
+        } else if (binaryOutput) {
+          // Parse the input string, encoding the parser events. This does not need the thread of the query.
+          final BinaryEventSerializer serializer = new BinaryEventSerializer();
+          final TraceSink traceSink = new TraceSink(correlationId, traceLines);
+          final long startTime = System.nanoTime();
+          try {
+            limits.parse(this, callingContext, parser, input, serializer, traceSink);
+          } catch (XPathException | RuntimeException e) {
+            statistics.parsed(System.nanoTime() - startTime, 0, input.length(), 0, true);
+            traceSink.logLines();
+            throw e;
+          }
+          final long buildStartTime = System.nanoTime();
+          result = ExtensionFunctionsModule.toBinaryValue(this, callingContext, serializer.getSerialization());
+          statistics.parsed(buildStartTime - startTime, System.nanoTime() - buildStartTime, input.length(), serializer.getElementCount(), serializer.isFailed());
+        } else {
+          // Parse the input string, building the result document from the parser events.
+          final MemTreeSerializer serializer = new MemTreeSerializer(callingContext, select);
+          final TraceSink traceSink = new TraceSink(correlationId, traceLines);
+          final long startTime = System.nanoTime();
+          // Without a timeout, the document is built while parsing, so the build time is part of the parse time.
+          long buildStartTime;
+          try {
+            if (limits.hasTimeout()) {
+              // The parse runs on a parse thread, so the events are recorded, and the document is built on this thread.
+              final ParseEvents parseEvents = new ParseEvents();
+              limits.parse(this, callingContext, parser, input, parseEvents, traceSink);
+              buildStartTime = System.nanoTime();
+              result = parseEvents.replay(serializer);
+            } else {
+              limits.parse(this, callingContext, parser, input, serializer, traceSink);
+              buildStartTime = System.nanoTime();
+              result = serializer.getSerialization();
+            }
+          } catch (XPathException | RuntimeException e) {
+            statistics.parsed(System.nanoTime() - startTime, 0, input.length(), 0, true);
+            traceSink.logLines();
+            throw e;
+          }
+          statistics.parsed(buildStartTime - startTime, System.nanoTime() - buildStartTime, input.length(), serializer.getElementCount(), serializer.isFailed());
+        }
+        return traceLines == null ? result : TraceSink.toMap(this, result, traceLines);
+    }
+
+    // Split the input into records. Empty records, such as after a final separator, are left out.
+    private List<String> splitRecords(String input) {
+        final List<String> records = new ArrayList<>();
+        int start = 0;
+        while (start < input.length()) {
+          int end = input.indexOf(recordSeparator, start);
+          if (end < 0) {
+            end = input.length();
+          }
+          if (end > start) {
+            records.add(input.substring(start, end));
+          }
+          start = end + recordSeparator.length();
+        }
+        return records;
     }
 
   }
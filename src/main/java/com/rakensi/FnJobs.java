@@ -0,0 +1,71 @@
+package com.rakensi;
+
+import static com.rakensi.ExtensionFunctionsModule.functionSignature;
+
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.DoubleValue;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.Type;
+import org.exist.xquery.value.ValueSequence;
+
+/**
+ * Implementation of
+ *   jobs()  as map(*)*
+ * Each result describes a job that was started by ixml:tag-collection since eXist-db was started, or continued after a restart:
+ *   map {
+ *     "id": ..., "collection": ..., "state": "scheduled" | "running" | "finished" | "failed",
+ *     "documents": ..., "processed": ..., "failures": ..., "characters": ...,
+ *     "documents-per-second": ..., "characters-per-second": ...
+ *   }
+ */
+public class FnJobs extends BasicFunction
+{
+
+  private static final String FS_JOBS_NAME = "jobs";
+
+  static final FunctionSignature FS_JOBS =
+      functionSignature(
+          FnJobs.FS_JOBS_NAME,
+          "Returns the state and progress of the jobs started by ixml:tag-collection. Only a DBA can see the jobs.",
+          new FunctionReturnSequenceType(Type.MAP, Cardinality.ZERO_OR_MORE, "A map for each job, ordered by job id.")
+      );
+
+  public FnJobs(final XQueryContext context, final FunctionSignature signature) {
+      super(context, signature);
+  }
+
+  @Override
+  public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+      if (!context.getSubject().hasDbaRole()) {
+        throw new XPathException(this, ErrorCodes.ERROR, "Only a DBA can see the tagging jobs");
+      }
+      final ValueSequence result = new ValueSequence();
+      for (TagCollectionJob.Task task : TagCollectionJob.getTasks()) {
+        final MapType job = new MapType(this, context);
+        job.add(new StringValue("id"), new StringValue(task.getId()));
+        job.add(new StringValue("collection"), new StringValue(task.getCollection()));
+        job.add(new StringValue("state"), new StringValue(task.getState()));
+        if (task.getMessage() != null) {
+          job.add(new StringValue("message"), new StringValue(task.getMessage()));
+        }
+        job.add(new StringValue("documents"), new IntegerValue(task.getDocuments()));
+        job.add(new StringValue("processed"), new IntegerValue(task.getProcessed()));
+        job.add(new StringValue("failures"), new IntegerValue(task.getFailures()));
+        job.add(new StringValue("characters"), new IntegerValue(task.getCharacters()));
+        job.add(new StringValue("documents-per-second"), new DoubleValue(task.getDocumentsPerSecond()));
+        job.add(new StringValue("characters-per-second"), new DoubleValue(task.getCharactersPerSecond()));
+        result.add(job);
+      }
+      return result;
+  }
+
+}
@@ -0,0 +1,208 @@
+package com.rakensi;
+
+import static com.rakensi.ExtensionFunctionsModule.functionSignature;
+import static org.exist.xquery.FunctionDSL.optManyParam;
+import static org.exist.xquery.FunctionDSL.optParam;
+import static org.exist.xquery.FunctionDSL.param;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.Type;
+import org.exist.xquery.value.ValueSequence;
+
+import de.bottlecaps.markup.blitz.Parser;
+
+import com.rakensi.ParserStatistics.GrammarStatistics;
+
+/**
+ * Implementation of
+ *   parse-all(
+ *     $parser   as function(*),
+ *     $inputs   as xs:string*,
+ *     $options  as map(*)?  := {}
+ *   )  as item()*
+ * The inputs are parsed in parallel, and the results are returned in the order of the inputs.
+ * The parser must be a function returned by invisible-xml or parser.
+ * The 'select', 'output', 'max-input-length' and 'timeout' options of the parser apply to each input and to all inputs together.
+ * With the 'trace-output' option 'map' of the parser, the result is a map with the results and the trace lines of all inputs, in the order of the inputs.
+ */
+public class FnParseAll extends BasicFunction
+{
+
+  private static final String FS_PARSE_ALL_NAME = "parse-all";
+
+  // The option for the number of parallel parses.
+  private static final String PARALLELISM_OPTION = "parallelism";
+
+  static final FunctionSignature FS_PARSE_ALL =
+      functionSignature(
+          FnParseAll.FS_PARSE_ALL_NAME,
+          "Parses a sequence of input strings in parallel, using an ixml parser. The results are in the same order as the inputs.",
+          new FunctionReturnSequenceType(Type.ITEM, Cardinality.ZERO_OR_MORE, "The results of parsing the input strings"),
+          param("parser", Type.FUNCTION_REFERENCE, "An ixml parser, returned by ixml:invisible-xml or ixml:parser"),
+          optManyParam("inputs", Type.STRING, "The input strings"),
+          optParam("options", Type.MAP, "The options for parsing. The supported option is 'parallelism', the maximum number of inputs that are parsed at the same time.")
+      );
+
+  // The pool that is used when no parallelism is specified.
+  private static final ForkJoinPool parsePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+  public FnParseAll(final XQueryContext context, final FunctionSignature signature) {
+      super(context, signature);
+  }
+
+  @Override
+  public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+      final Parser parser = FnInvisibleXml.getParser(args[0].itemAt(0));
+      if (parser == null) {
+        throw new XPathException(this, ErrorCodes.ERROR, "The parser must be a function returned by ixml:invisible-xml or ixml:parser");
+      }
+      final List<String> inputs = new ArrayList<>(args[1].getItemCount());
+      for (SequenceIterator it = args[1].iterate(); it.hasNext();) {
+        inputs.add(it.nextItem().getStringValue());
+      }
+      if (inputs.isEmpty()) {
+        return Sequence.EMPTY_SEQUENCE;
+      }
+      final Map<String, String> options;
+      if (args[2].isEmpty()) {
+        options = ExtensionFunctionsModule.getOptionStrings(null);
+      } else {
+        options = ExtensionFunctionsModule.getOptionStrings((MapType) args[2].itemAt(0));
+      }
+      final ForkJoinPool pool = options.containsKey(PARALLELISM_OPTION) ? new ForkJoinPool(getParallelism(options.get(PARALLELISM_OPTION))) : parsePool;
+      try {
+        final String correlationId = TraceSink.correlationId(context, FnInvisibleXml.getGrammarHash(args[0].itemAt(0)));
+        // Trace output is collected here if the parser returns it, and logged otherwise.
+        final List<String> traceLines = FnInvisibleXml.isTraceOutputMap(args[0].itemAt(0)) ? new ArrayList<>() : null;
+        final Sequence result = parseAll(this, context, parser, inputs, pool, FnInvisibleXml.getLimits(args[0].itemAt(0)), FnInvisibleXml.getSelect(args[0].itemAt(0)),
+            FnInvisibleXml.isBinaryOutput(args[0].itemAt(0)), FnInvisibleXml.getStatistics(args[0].itemAt(0)), correlationId, traceLines);
+        return traceLines == null ? result : TraceSink.toMap(this, result, traceLines);
+      } finally {
+        if (pool != parsePool) {
+          pool.shutdown();
+        }
+      }
+  }
+
+  /**
+   * Parse inputs in parallel, and build the result documents in the order of the inputs.
+   * The inputs are parsed on the pool threads, and the results are recorded as events,
+   * because only the thread of the query may build in-memory documents.
+   * Parses are counted in statistics.
+   * Each input has its own trace sink, with the number of the input appended to the correlation id.
+   * While the inputs are parsed, the timeout in limits and the watchdog of the query are checked.
+   * @param resultContext The context for building the results, or null if the results are built without a query context.
+   * @param select The names of the elements that are built, or null if all elements are built.
+   * @param binaryOutput Whether the results are binary parser events, instead of documents.
+   * @param traceLines The list where trace output is collected in the order of the inputs, or null if it is logged.
+   */
+  static Sequence parseAll(final BasicFunction caller, final XQueryContext resultContext, final Parser parser, final List<String> inputs, final ForkJoinPool pool,
+      final ParseLimits limits, final Set<String> select, final boolean binaryOutput, final GrammarStatistics statistics, final String correlationId,
+      final List<String> traceLines) throws XPathException {
+      for (String input : inputs) {
+        limits.checkInputLength(caller, input.length());
+      }
+      ParseLimits.checkParseThreads(caller);
+      final List<ParseEvents> parsedInputs;
+      final long[] parseTimes = new long[inputs.size()];
+      final List<List<String>> inputTraceLines = new ArrayList<>(inputs.size());
+      // When the query stops waiting, inputs that have not started are skipped, and running inputs are counted as stopped parses.
+      final List<ParseLimits.StoppableParse> stoppableParses = new ArrayList<>(inputs.size());
+      for (int i = 0; i < inputs.size(); ++i) {
+        inputTraceLines.add(traceLines == null ? null : new ArrayList<>());
+        stoppableParses.add(new ParseLimits.StoppableParse());
+      }
+      try {
+        parsedInputs = limits.await(caller, resultContext, pool.submit(() ->
+          IntStream.range(0, inputs.size()).parallel()
+            .mapToObj(i -> {
+              final ParseLimits.StoppableParse stoppableParse = stoppableParses.get(i);
+              if (!stoppableParse.start()) {
+                throw new CancellationException("The parse was stopped");
+              }
+              final String input = inputs.get(i);
+              final ParseEvents parseEvents = new ParseEvents();
+              final TraceSink traceSink = new TraceSink(correlationId + " input " + (i + 1), inputTraceLines.get(i));
+              final TraceSink previousTraceSink = traceSink.activate();
+              final long startTime = System.nanoTime();
+              try {
+                parser.parse(input, parseEvents);
+              } catch (RuntimeException e) {
+                statistics.parsed(System.nanoTime() - startTime, 0, input.length(), 0, true);
+                traceSink.logLines();
+                throw e;
+              } finally {
+                traceSink.deactivate(previousTraceSink);
+                stoppableParse.finish();
+              }
+              parseTimes[i] = System.nanoTime() - startTime;
+              return parseEvents;
+            })
+            .collect(Collectors.toList())
+        ));
+      } catch (XPathException e) {
+        stoppableParses.forEach(ParseLimits.StoppableParse::stop);
+        throw e;
+      } catch (ExecutionException e) {
+        // After a parse error, the other inputs are not needed either.
+        stoppableParses.forEach(ParseLimits.StoppableParse::stop);
+        throw new XPathException(caller, ErrorCodes.ERROR, e.getCause().getMessage(), e.getCause());
+      }
+      if (traceLines != null) {
+        inputTraceLines.forEach(traceLines::addAll);
+      }
+      final ValueSequence result = new ValueSequence(parsedInputs.size());
+      for (int i = 0; i < parsedInputs.size(); ++i) {
+        if (binaryOutput) {
+          final BinaryEventSerializer serializer = new BinaryEventSerializer();
+          final long startTime = System.nanoTime();
+          result.add(ExtensionFunctionsModule.toBinaryValue(caller, resultContext, parsedInputs.get(i).replay(serializer)));
+          statistics.parsed(parseTimes[i], System.nanoTime() - startTime, inputs.get(i).length(), serializer.getElementCount(), serializer.isFailed());
+          continue;
+        }
+        final MemTreeSerializer serializer = new MemTreeSerializer(resultContext, select);
+        final long startTime = System.nanoTime();
+        result.add(parsedInputs.get(i).replay(serializer));
+        statistics.parsed(parseTimes[i], System.nanoTime() - startTime, inputs.get(i).length(), serializer.getElementCount(), serializer.isFailed());
+      }
+      return result;
+  }
+
+  static Sequence parseAll(final BasicFunction caller, final XQueryContext resultContext, final Parser parser, final List<String> inputs, final ParseLimits limits,
+      final Set<String> select, final boolean binaryOutput, final GrammarStatistics statistics, final String correlationId, final List<String> traceLines)
+      throws XPathException {
+      return parseAll(caller, resultContext, parser, inputs, parsePool, limits, select, binaryOutput, statistics, correlationId, traceLines);
+  }
+
+  private int getParallelism(String parallelism) throws XPathException {
+    try {
+      final int value = Integer.parseInt(parallelism.trim());
+      if (value > 0) {
+        return value;
+      }
+    } catch (NumberFormatException e) {
+      // Fall through to the error below.
+    }
+    throw new XPathException(this, ErrorCodes.ERROR, "The option \"" + PARALLELISM_OPTION + "\" must be a positive integer, not \"" + parallelism + "\"");
+  }
+
+}
@@ -0,0 +1,58 @@
+package com.rakensi;
+
+import static com.rakensi.ExtensionFunctionsModule.functionSignature;
+import static org.exist.xquery.FunctionDSL.param;
+
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.Type;
+
+import de.bottlecaps.markup.blitz.Parser;
+
+import com.rakensi.ParserStatistics.GrammarStatistics;
+
+/**
+ * Implementation of
+ *   parser(
+ *     $name  as xs:string
+ *   )  as fn(xs:string) as item()
+ * This returns the same kind of parser as invisible-xml, for a grammar registered with register-grammar.
+ */
+public class FnParser extends BasicFunction
+{
+
+  private static final String FS_PARSER_NAME = "parser";
+
+  static final FunctionSignature FS_PARSER =
+      functionSignature(
+          FnParser.FS_PARSER_NAME,
+          "Returns an ixml parser for a registered grammar. The parser returns an XML representation of the input string as parsed by the grammar.",
+          new FunctionReturnSequenceType(Type.FUNCTION_REFERENCE, Cardinality.EXACTLY_ONE, "A function that can be used to parse an input string."),
+          param("name", Type.STRING, "The name of the registered grammar")
+      );
+
+  public FnParser(final XQueryContext context, final FunctionSignature signature) {
+      super(context, signature);
+  }
+
+  @Override
+  public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+      final String name = args[0].getStringValue();
+      final GrammarRegistry grammarRegistry = ExtensionFunctionsModule.getGrammarRegistry();
+      final Parser parser = grammarRegistry.getParser(name);
+      if (parser == null) {
+        throw new XPathException(this, ErrorCodes.ERROR, "There is no registered grammar with the name \"" + name + "\"");
+      }
+      final String grammarHash = grammarRegistry.getGrammarHash(name);
+      final GrammarStatistics statistics = ExtensionFunctionsModule.getStatistics().get(ParserStatistics.IXML, grammarHash);
+      statistics.setConflicts(grammarRegistry.getConflicts(name));
+      return FnInvisibleXml.parserFunction(context, parser, grammarHash, grammarRegistry.getOptions(name), statistics);
+  }
+
+}
@@ -0,0 +1,66 @@
+package com.rakensi;
+
+import static com.rakensi.ExtensionFunctionsModule.functionSignature;
+import static org.exist.xquery.FunctionDSL.optParam;
+import static org.exist.xquery.FunctionDSL.param;
+import static org.exist.xquery.FunctionDSL.returnsNothing;
+
+import java.util.Map;
+
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.Type;
+
+/**
+ * Implementation of
+ *   register-grammar(
+ *     $name     as xs:string,
+ *     $grammar  as xs:string,
+ *     $options  as map(*)?  := {}
+ *   )  as empty-sequence()
+ * The registered grammar is stored, and its parser can be obtained with ixml:parser($name).
+ */
+public class FnRegisterGrammar extends BasicFunction
+{
+
+  private static final String FS_REGISTER_GRAMMAR_NAME = "register-grammar";
+
+  static final FunctionSignature FS_REGISTER_GRAMMAR =
+      functionSignature(
+          FnRegisterGrammar.FS_REGISTER_GRAMMAR_NAME,
+          "Registers an ixml grammar under a name. The grammar is stored, and its parser is generated when eXist-db starts. Only a DBA can register grammars.",
+          returnsNothing(),
+          param("name", Type.STRING, "The name of the grammar"),
+          param("grammar", Type.STRING, "The ixml grammar used to generate the parser"),
+          optParam("options", Type.MAP, "The options for the parser genarator and the parser itself. Supported options are 'fail-on-error', 'verbose', 'trace', 'timing'")
+      );
+
+  public FnRegisterGrammar(final XQueryContext context, final FunctionSignature signature) {
+      super(context, signature);
+  }
+
+  @Override
+  public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+      if (!context.getSubject().hasDbaRole()) {
+        throw new XPathException(this, ErrorCodes.ERROR, "Only a DBA can register grammars");
+      }
+      final String name = args[0].getStringValue();
+      final String grammar = args[1].getStringValue();
+      final Map<String, String> options;
+      if (args[2].isEmpty()) {
+        options = ExtensionFunctionsModule.getOptionStrings(null);
+      } else {
+        options = ExtensionFunctionsModule.getOptionStrings((MapType) args[2].itemAt(0));
+      }
+      // Check the options before anything is stored.
+      ExtensionFunctionsModule.parseOptions(options);
+      ExtensionFunctionsModule.getGrammarRegistry().register(name, grammar, options);
+      return Sequence.EMPTY_SEQUENCE;
+  }
+
+}
@@ -0,0 +1,78 @@
+package com.rakensi;
+
+import static com.rakensi.ExtensionFunctionsModule.functionSignature;
+
+import java.util.Map;
+
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.Type;
+
+import com.rakensi.ParserStatistics.GrammarStatistics;
+
+/**
+ * Implementation of
+ *   stats()  as map(*)
+ * The result has the same numbers as the JMX MBean com.rakensi.ixml:type=ParserStatistics:
+ *   map {
+ *     "cache": map { "size": ..., "max-size": ..., "hits": ..., "misses": ... },
+ *     "invisible-xml": map { grammar hash: map { "parse-mode": ..., "generations": ..., "parses": ..., ... } },
+ *     "transparent-invisible-xml": map { ... }
+ *   }
+ */
+public class FnStats extends BasicFunction
+{
+
+  private static final String FS_STATS_NAME = "stats";
+
+  static final FunctionSignature FS_STATS =
+      functionSignature(
+          FnStats.FS_STATS_NAME,
+          "Returns the statistics of parser generation and parsing, per grammar.",
+          new FunctionReturnSequenceType(Type.MAP, Cardinality.EXACTLY_ONE, "A map with the statistics of the parser cache, and of each grammar for invisible-xml and transparent-invisible-xml.")
+      );
+
+  public FnStats(final XQueryContext context, final FunctionSignature signature) {
+      super(context, signature);
+  }
+
+  @Override
+  public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+      final ParserStatistics statistics = ExtensionFunctionsModule.getStatistics();
+      final MapType cache = new MapType(this, context);
+      cache.add(new StringValue("size"), new IntegerValue(statistics.getCacheSize()));
+      cache.add(new StringValue("max-size"), new IntegerValue(statistics.getCacheMaxSize()));
+      cache.add(new StringValue("hits"), new IntegerValue(statistics.getCacheHits()));
+      cache.add(new StringValue("misses"), new IntegerValue(statistics.getCacheMisses()));
+      final MapType ixml = new MapType(this, context);
+      final MapType tixml = new MapType(this, context);
+      for (Map.Entry<String, GrammarStatistics> grammar : statistics.getGrammars().entrySet()) {
+        // The key is the kind of function and the grammar hash, separated by '/'.
+        final String key = grammar.getKey();
+        final int separator = key.indexOf('/');
+        final MapType counters = new MapType(this, context);
+        final String parseMode = grammar.getValue().getParseMode();
+        if (parseMode != null) {
+          counters.add(new StringValue("parse-mode"), new StringValue(parseMode));
+        }
+        for (Map.Entry<String, Long> counter : grammar.getValue().getCounters().entrySet()) {
+          counters.add(new StringValue(counter.getKey()), new IntegerValue(counter.getValue()));
+        }
+        (key.substring(0, separator).equals(ParserStatistics.IXML) ? ixml : tixml).add(new StringValue(key.substring(separator + 1)), counters);
+      }
+      final MapType result = new MapType(this, context);
+      result.add(new StringValue("cache"), cache);
+      result.add(new StringValue(ParserStatistics.IXML), ixml);
+      result.add(new StringValue(ParserStatistics.TIXML), tixml);
+      return result;
+  }
+
+}
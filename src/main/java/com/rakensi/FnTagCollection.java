@@ -0,0 +1,113 @@
+package com.rakensi;
+
+import static com.rakensi.ExtensionFunctionsModule.functionSignature;
+import static org.exist.xquery.FunctionDSL.optParam;
+import static org.exist.xquery.FunctionDSL.param;
+
+import java.net.URISyntaxException;
+import java.util.Map;
+
+import org.exist.collections.Collection;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.Type;
+
+import de.bottlecaps.markup.blitz.Option;
+
+import com.rakensi.ParserStatistics.GrammarStatistics;
+
+/**
+ * Implementation of
+ *   tag-collection(
+ *     $collection  as xs:string,
+ *     $grammar     as xs:string,
+ *     $options     as map(*)?  := {}
+ *   )  as xs:string
+ * Starts a background job that adds the markup of a tixml grammar to all XML documents in a collection and its subcollections,
+ * and returns the id of the job. The progress of the job is returned by ixml:jobs().
+ */
+public class FnTagCollection extends BasicFunction
+{
+
+  private static final String FS_TAG_COLLECTION_NAME = "tag-collection";
+
+  // The option for the number of documents that are tagged at the same time.
+  private static final String WORKERS_OPTION = "workers";
+
+  static final FunctionSignature FS_TAG_COLLECTION =
+      functionSignature(
+          FnTagCollection.FS_TAG_COLLECTION_NAME,
+          "Starts a background job that writes the markup of a tixml grammar into all XML documents in a collection and its subcollections. Only a DBA can start a job.",
+          new FunctionReturnSequenceType(Type.STRING, Cardinality.EXACTLY_ONE, "The id of the job"),
+          param("collection", Type.STRING, "The path of the collection"),
+          param("grammar", Type.STRING, "The ixml grammar used to generate the parser"),
+          optParam("options", Type.MAP, "The options for the parser genarator and the parser itself. Supported options are 'workers', the number of documents that are tagged at the same time, 'max-input-length', 'timeout', 'include', 'exclude', 'verbose', 'trace', 'timing'")
+      );
+
+  public FnTagCollection(final XQueryContext context, final FunctionSignature signature) {
+      super(context, signature);
+  }
+
+  @Override
+  public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+      if (!context.getSubject().hasDbaRole()) {
+        throw new XPathException(this, ErrorCodes.ERROR, "Only a DBA can tag a collection");
+      }
+      final XmldbURI collectionUri;
+      try {
+        collectionUri = XmldbURI.xmldbUriFor(args[0].getStringValue());
+      } catch (URISyntaxException e) {
+        throw new XPathException(this, ErrorCodes.ERROR, "Invalid collection path \"" + args[0].getStringValue() + "\"", e);
+      }
+      try (Collection collection = context.getBroker().openCollection(collectionUri, LockMode.READ_LOCK)) {
+        if (collection == null) {
+          throw new XPathException(this, ErrorCodes.ERROR, "There is no collection " + collectionUri);
+        }
+      } catch (PermissionDeniedException e) {
+        throw new XPathException(this, ErrorCodes.ERROR, e.getMessage(), e);
+      }
+      final String grammar = args[1].getStringValue();
+      final Map<String, String> options;
+      if (args[2].isEmpty()) {
+        options = ExtensionFunctionsModule.getOptionStrings(null);
+      } else {
+        options = ExtensionFunctionsModule.getOptionStrings((MapType) args[2].itemAt(0));
+      }
+      final String workers = options.remove(WORKERS_OPTION);
+      // Generate the parser now, so grammar errors and invalid options are reported to the caller.
+      final Map<Option, Object> blitzOptions = ExtensionFunctionsModule.parseOptions(options);
+      blitzOptions.put(Option.FAIL_ON_ERROR, true);
+      ParseLimits.fromOptions(options);
+      final String grammarHash = ParserCache.hash(grammar);
+      final GrammarStatistics statistics = ExtensionFunctionsModule.getStatistics().get(ParserStatistics.TIXML, grammarHash);
+      ExtensionFunctionsModule.generateParser(grammarHash, grammar, blitzOptions, statistics);
+      final String id = TagCollectionJob.start(context.getBroker().getBrokerPool(), context.getSubject(), collectionUri, grammar, options,
+          workers == null ? Runtime.getRuntime().availableProcessors() : getWorkers(workers),
+          ExtensionFunctionsModule.getGrammarRegistry().getDirectory());
+      return new StringValue(this, id);
+  }
+
+  private int getWorkers(String workers) throws XPathException {
+    try {
+      final int value = Integer.parseInt(workers.trim());
+      if (value > 0) {
+        return value;
+      }
+    } catch (NumberFormatException e) {
+      // Fall through to the error below.
+    }
+    throw new XPathException(this, ErrorCodes.ERROR, "The option \"" + WORKERS_OPTION + "\" must be a positive integer, not \"" + workers + "\"");
+  }
+
+}
@@ -0,0 +1,60 @@
+package com.rakensi;
+
+import static com.rakensi.ExtensionFunctionsModule.functionSignature;
+import static org.exist.xquery.FunctionDSL.manyParam;
+import static org.exist.xquery.FunctionDSL.optParam;
+
+import java.util.Map;
+
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.Type;
+
+/**
+ * Implementation of
+ *   tixml-pipeline(
+ *     $stages   as function(*)+,
+ *     $options  as map(*)?  := {}
+ *   )  as function($input as item()) as node()*
+ * The stages are parser functions returned by transparent-invisible-xml or tixml-pipeline.
+ * The returned function adds the markup of each stage to the input, one stage after another.
+ * The input is converted to a SMAX document once, and the result is built or written back once.
+ */
+public class FnTixmlPipeline extends BasicFunction
+{
+
+  private static final String FS_TIXML_PIPELINE_NAME = "tixml-pipeline";
+
+  static final FunctionSignature FS_TIXML_PIPELINE =
+      functionSignature(
+          FnTixmlPipeline.FS_TIXML_PIPELINE_NAME,
+          "Returns a transparent invisible xml parser that runs several tixml parsers one after another on the same input.",
+          new FunctionReturnSequenceType(Type.FUNCTION_REFERENCE, Cardinality.EXACTLY_ONE, "A function that can be used to parse an input string or node."),
+          manyParam("stages", Type.FUNCTION_REFERENCE, "The parser functions returned by ixml:transparent-invisible-xml, in the order in which they add markup"),
+          optParam("options", Type.MAP, "The options for the pipeline. Supported options are 'write-back' to add the markup to a stored input node instead of returning a copy, and 'trace-output'.")
+      );
+
+  public FnTixmlPipeline(final XQueryContext context, final FunctionSignature signature) {
+      super(context, signature);
+  }
+
+  @Override
+  public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+      final Map<String, String> options;
+      if (args[1].isEmpty()) {
+        options = ExtensionFunctionsModule.getOptionStrings(null);
+      } else {
+        options = ExtensionFunctionsModule.getOptionStrings((MapType) args[1].itemAt(0));
+      }
+      return FnTransparentInvisibleXml.pipelineFunction(this, context, args[0],
+          ExtensionFunctionsModule.getBooleanOption(options, ExtensionFunctionsModule.WRITE_BACK_OPTION),
+          ExtensionFunctionsModule.isTraceOutputMap(options));
+  }
+
+}
@@ -1,18 +1,27 @@
 package com.rakensi;
 
 import static com.rakensi.ExtensionFunctionsModule.functionSignature;
+import static org.exist.xquery.FunctionDSL.optManyParam;
 import static org.exist.xquery.FunctionDSL.optParam;
 import static org.exist.xquery.FunctionDSL.param;
 
-import java.io.IOException;
-import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
+import org.exist.EXistException;
 import org.exist.dom.QName;
-import org.exist.dom.memtree.DocumentImpl;
-import org.exist.dom.memtree.SAXAdapter;
+import org.exist.dom.persistent.DefaultDocumentSet;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.ElementImpl;
+import org.exist.security.Permission;
+import org.exist.storage.txn.TransactionException;
+import org.exist.util.LockException;
 import org.exist.xquery.BasicFunction;
 import org.exist.xquery.Cardinality;
 import org.exist.xquery.ErrorCodes;
@@ -25,36 +34,35 @@ import org.exist.xquery.FunctionSignature;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
 import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.update.Modification;
+import org.exist.xquery.value.BinaryValue;
 import org.exist.xquery.value.FunctionReference;
 import org.exist.xquery.value.FunctionReturnSequenceType;
 import org.exist.xquery.value.Item;
 import org.exist.xquery.value.NodeValue;
 import org.exist.xquery.value.Sequence;
-import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.SequenceIterator;
 import org.exist.xquery.value.Type;
-import org.exist.xquery.value.ValueSequence;
 import org.greenmercury.smax.SmaxDocument;
 import org.greenmercury.smax.SmaxElement;
-import org.greenmercury.smax.SmaxException;
-import org.greenmercury.smax.convert.DomElement;
-import org.greenmercury.smax.convert.SAX;
-import org.w3c.dom.Document;
-import org.w3c.dom.DocumentFragment;
-import org.w3c.dom.Element;
+import org.w3c.dom.DOMException;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
-import de.bottlecaps.markup.Blitz;
 import de.bottlecaps.markup.blitz.Option;
 import de.bottlecaps.markup.blitz.Parser;
+import de.bottlecaps.markup.blitz.Serializer;
+
+import com.rakensi.ParserStatistics.GrammarStatistics;
 
 /**
  * Implementation of
  *   transparent-invisible-xml(
- *     $grammar  as item()?  := (),
+ *     $grammar  as item()*  := (),
  *     $options  as map(*)?  := {}
  *   )  as function($input as item()) as node()*
+ * The grammar can be one grammar, several grammars in the order of their priority, or a map of named grammars.
+ * Several grammars share one conversion of the input, and their markup is merged by priority, see {@link MarkupMerger}.
  * @see https://www.xmlprague.cz/day3-2024/#iXML
  */
 public class FnTransparentInvisibleXml extends BasicFunction
@@ -67,47 +75,11 @@ public class FnTransparentInvisibleXml extends BasicFunction
           FnTransparentInvisibleXml.FS_TRANSPARENT_INVISIBLE_XML_NAME,
           "Returns a transparent invisible xml parser from a grammar.",
           new FunctionReturnSequenceType(Type.FUNCTION_REFERENCE, Cardinality.EXACTLY_ONE, "A function that can be used to parse an input string or node."),
-          optParam("grammar", Type.ITEM, "The ixml grammar used to generate the parser"),
-          optParam("options", Type.MAP, "The options for the parser genarator and the parser itself. Supported options are 'fail-on-error', 'verbose', 'trace', 'timing'")
+          optManyParam("grammar", Type.ITEM, "The ixml grammar used to generate the parser, or several grammars in the order of their priority, or a map of named grammars"),
+          optParam("options", Type.MAP, "The options for the parser genarator and the parser itself. Supported options are 'fail-on-error', 'verbose', 'trace', 'timing', 'encoding' for binary input, 'write-back' to add the markup to a stored input node instead of returning a copy, 'trace-output', 'max-input-length', 'timeout', 'output', 'priority' for the names of a map of grammars in the order of their priority, and 'include' and 'exclude' for the elements whose text is parsed.")
       );
 
-  // Make a logger, and a trace-writer for Markup Blitz.
   private static final org.apache.logging.log4j.Logger logger = org.apache.logging.log4j.LogManager.getLogger(FnTransparentInvisibleXml.class);
-  private static final Writer logWriter = new Writer() {
-    StringBuffer buffer = new StringBuffer();
-    public int indexOf(char[] cbuf, char c, int off, int len) {
-      int maxPos = off + len;
-      for (int i = off; i < maxPos; i++) if (cbuf[i] == c) return i;
-      return -1;
-    }
-    @Override
-    public void write(char[] cbuf, int off, int len) throws IOException
-    {
-      int eolPos;
-      while ((eolPos = indexOf(cbuf, '\n', off, len)) >= 0) {
-        buffer.append(String.valueOf(cbuf, off, eolPos - off));
-        flush();
-        off = eolPos + 1;
-        len = len - (eolPos - off) - 1;
-      }
-      if (len > 0) {
-        buffer.append(String.valueOf(cbuf, off, len));
-      }
-    }
-    @Override
-    public void flush() throws IOException
-    {
-      if (buffer.length() > 0) {
-        logger.info(buffer);
-        buffer.delete(0, buffer.length());
-      }
-    }
-    @Override
-    public void close() throws IOException
-    {
-      flush();
-    }
-  };
 
   public FnTransparentInvisibleXml(final XQueryContext context, final FunctionSignature signature) {
       super(context, signature);
@@ -119,48 +91,229 @@ public class FnTransparentInvisibleXml extends BasicFunction
   @Override
   public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
       // Handle $grammar and $options parameters.
-      final String grammar;
-      if (args[0].isEmpty()) {
-        grammar = ExtensionFunctionsModule.getIxmlGrammar();
-      } else {
-        grammar = ((StringValue)args[0].itemAt(0)).getStringValue();
-      }
-      final Map<Option, Object> options;
+      final Map<String, String> optionStrings;
       if (args[1].isEmpty()) {
-        options = ExtensionFunctionsModule.getOptions(null);
+        optionStrings = ExtensionFunctionsModule.getOptionStrings(null);
       } else {
-        options = ExtensionFunctionsModule.getOptions((MapType) args[1].itemAt(0));
+        optionStrings = ExtensionFunctionsModule.getOptionStrings((MapType) args[1].itemAt(0));
       }
+      final Map<Option, Object> options = ExtensionFunctionsModule.parseOptions(optionStrings);
+      final Charset encoding = ExtensionFunctionsModule.getEncoding(optionStrings);
+      final boolean writeBack = ExtensionFunctionsModule.getBooleanOption(optionStrings, ExtensionFunctionsModule.WRITE_BACK_OPTION);
       // We cannot serialize errors to SMAX, so we must fail on error.
       options.put(Option.FAIL_ON_ERROR, true);
-      // Generate the Markup Blitz parser for the grammar.
-      final Parser parser = Blitz.generate(grammar, options);
-      parser.setTraceWriter(logWriter);
-      // Make a TixmlParser function from the Markup Blitz parser. The signature is function(xs:item) as item()+
+      // Get the Markup Blitz parsers for the grammars, generating them if they are not cached.
+      final List<TaggingGrammar> grammars = new ArrayList<>();
+      if (args[0].isEmpty()) {
+        final String grammarHash = ExtensionFunctionsModule.getIxmlGrammarHash();
+        final GrammarStatistics statistics = ExtensionFunctionsModule.getStatistics().get(ParserStatistics.TIXML, grammarHash);
+        grammars.add(new TaggingGrammar(ExtensionFunctionsModule.getIxmlParser(options, statistics), grammarHash, statistics));
+      } else {
+        for (String grammar : getGrammars(args[0], optionStrings.get(ExtensionFunctionsModule.PRIORITY_OPTION))) {
+          final String grammarHash = ParserCache.hash(grammar);
+          final GrammarStatistics statistics = ExtensionFunctionsModule.getStatistics().get(ParserStatistics.TIXML, grammarHash);
+          grammars.add(new TaggingGrammar(ExtensionFunctionsModule.generateParser(grammarHash, grammar, options, statistics), grammarHash, statistics));
+        }
+      }
+      final boolean traceToMap = ExtensionFunctionsModule.isTraceOutputMap(optionStrings);
+      final ParseLimits limits = ParseLimits.fromOptions(optionStrings);
+      final ParseScope scope = ParseScope.fromOptions(optionStrings);
+      final boolean spansOutput = ExtensionFunctionsModule.getOutput(optionStrings, ExtensionFunctionsModule.SPANS_OUTPUT).equals(ExtensionFunctionsModule.SPANS_OUTPUT);
+      if (spansOutput && writeBack) {
+        throw new XPathException(this, ErrorCodes.ERROR, "The option \"" + ExtensionFunctionsModule.WRITE_BACK_OPTION + "\" cannot be used with span output");
+      }
+      if (spansOutput && scope != null) {
+        throw new XPathException(this, ErrorCodes.ERROR, "The options \"" + ExtensionFunctionsModule.INCLUDE_OPTION + "\" and \"" + ExtensionFunctionsModule.EXCLUDE_OPTION + "\" cannot be used with span output");
+      }
+      return tixmlParserFunction(context, Collections.singletonList(new Stage(grammars, limits, scope)), encoding, writeBack, spansOutput, traceToMap);
+  }
+
+  /**
+   * Make a function reference for a generated tixml parser.
+   * @param stages The stages that add markup one after another. Span output has only one stage.
+   */
+  private static FunctionReference tixmlParserFunction(XQueryContext context, List<Stage> stages, Charset encoding, boolean writeBack, boolean spansOutput,
+      boolean traceToMap) throws XPathException {
+      // Make a TixmlParser function from the Markup Blitz parsers. The signature is function(xs:item) as item()+
       FunctionSignature parserSignature = FunctionDSL.functionSignature(
           new QName("generated-tixml-parser", "https://invisiblexml.org/"),
           "Generated tixml parser, only used internally",
           new FunctionReturnSequenceType(Type.ITEM, Cardinality.ZERO_OR_MORE, "The result of parsing the input"),
-          param("input", Type.ITEM, "The input string or node")
+          param("input", Type.ITEM, "The input string or node, or binary input in the encoding given by the 'encoding' option")
       );
-      final TixmlParser tixmlParser = new TixmlParser(context, parserSignature, parser);
+      final TixmlParser tixmlParser = new TixmlParser(context, parserSignature, stages, encoding, writeBack, spansOutput, traceToMap);
       // Make a function reference that can be used as the result.
       FunctionCall functionCall = FunctionFactory.wrap(context, tixmlParser);
       return new FunctionReference(functionCall);
   }
 
+  /**
+   * Make a tixml parser function that runs the stages of other tixml parser functions one after another.
+   * All stages add their markup to the same SMAX document, which is converted to nodes once.
+   * The encoding of binary input is taken from the first function.
+   * @param stageFunctions Functions returned by transparent-invisible-xml or by this function, without span output.
+   */
+  static FunctionReference pipelineFunction(Expression caller, XQueryContext context, Sequence stageFunctions, boolean writeBack, boolean traceToMap)
+      throws XPathException {
+      final List<Stage> stages = new ArrayList<>();
+      Charset encoding = null;
+      for (SequenceIterator it = stageFunctions.iterate(); it.hasNext();) {
+        final TixmlParser tixmlParser = getTixmlParser(it.nextItem());
+        if (tixmlParser == null) {
+          throw new XPathException(caller, ErrorCodes.ERROR, "A stage must be a function returned by ixml:transparent-invisible-xml or ixml:tixml-pipeline");
+        }
+        if (tixmlParser.spansOutput) {
+          throw new XPathException(caller, ErrorCodes.ERROR, "A stage cannot have span output");
+        }
+        if (encoding == null) {
+          encoding = tixmlParser.encoding;
+        }
+        stages.addAll(tixmlParser.stages);
+      }
+      return tixmlParserFunction(context, stages, encoding, writeBack, false, traceToMap);
+  }
+
+  private static TixmlParser getTixmlParser(final Item item) {
+      if (item instanceof FunctionReference) {
+        final Expression functionBody = ((FunctionReference) item).getCall().getFunction().getFunctionBody();
+        if (functionBody instanceof TixmlParser) {
+          return (TixmlParser) functionBody;
+        }
+      }
+      return null;
+  }
+
+  /**
+   * Get the grammars from the $grammar parameter, in the order of their priority.
+   * The grammars in a map are ordered by the names in the 'priority' option, followed by the other grammars ordered by name.
+   * @param priority The value of the 'priority' option, or null.
+   */
+  private List<String> getGrammars(Sequence grammarParameter, String priority) throws XPathException {
+    final List<String> grammars = new ArrayList<>();
+    if (grammarParameter.getItemCount() == 1 && grammarParameter.itemAt(0).getType() == Type.MAP) {
+      final Map<String, String> namedGrammars = new TreeMap<>(ExtensionFunctionsModule.getOptionStrings((MapType) grammarParameter.itemAt(0)));
+      if (priority != null) {
+        for (String name : Arrays.asList(priority.trim().split("\\s+"))) {
+          final String grammar = namedGrammars.remove(name);
+          if (grammar == null) {
+            throw new XPathException(this, ErrorCodes.ERROR, "The option \"" + ExtensionFunctionsModule.PRIORITY_OPTION + "\" has \"" + name + "\", which is not the name of a grammar");
+          }
+          grammars.add(grammar);
+        }
+      }
+      grammars.addAll(namedGrammars.values());
+    } else {
+      if (priority != null) {
+        throw new XPathException(this, ErrorCodes.ERROR, "The option \"" + ExtensionFunctionsModule.PRIORITY_OPTION + "\" needs a map of named grammars");
+      }
+      for (SequenceIterator it = grammarParameter.iterate(); it.hasNext();) {
+        final Item grammar = it.nextItem();
+        if (!Type.subTypeOf(grammar.getType(), Type.STRING)) {
+          throw new XPathException(this, ErrorCodes.ERROR, "A grammar must be a string or a map of named grammars, not a " + Type.getTypeName(grammar.getType()));
+        }
+        grammars.add(grammar.getStringValue());
+      }
+    }
+    if (grammars.isEmpty()) {
+      throw new XPathException(this, ErrorCodes.ERROR, "The map of grammars is empty");
+    }
+    return grammars;
+  }
+
+  /**
+   * A grammar of a tixml parser function, with its parser and statistics.
+   */
+  private static final class TaggingGrammar {
+
+    private final Parser parser;
+    private final String grammarHash;
+    private final GrammarStatistics statistics;
+
+    public TaggingGrammar(Parser parser, String grammarHash, GrammarStatistics statistics) {
+      this.parser = parser;
+      this.grammarHash = grammarHash;
+      this.statistics = statistics;
+    }
+
+  }
+
+  /**
+   * A stage of a tixml parser function: one or more grammars in the order of their priority, with their limits and scope.
+   */
+  private static final class Stage {
+
+    private final List<TaggingGrammar> grammars;
+    private final ParseLimits limits;
+    // The parts of the text that are parsed, or null if all text is parsed.
+    private final ParseScope scope;
+
+    public Stage(List<TaggingGrammar> grammars, ParseLimits limits, ParseScope scope) {
+      this.grammars = grammars;
+      this.limits = limits;
+      this.scope = scope;
+    }
+
+  }
+
+  /**
+   * The parse time, the number of parsed characters and the number of new elements of each grammar, in one call of a tixml parser function.
+   */
+  private static final class Tagging {
+
+    private final List<TaggingGrammar> grammars;
+    private final long[] parseTimes;
+    private final long[] lengths;
+    private final int[] elementCounts;
+
+    public Tagging(List<TaggingGrammar> grammars) {
+      this.grammars = grammars;
+      this.parseTimes = new long[grammars.size()];
+      this.lengths = new long[grammars.size()];
+      this.elementCounts = new int[grammars.size()];
+    }
+
+    // Count a successful call in the statistics of each grammar. The time that is not spent in parsing is counted as build time for the first grammar.
+    public void parsed(long time) {
+      long buildTime = time;
+      for (int i = 0; i < grammars.size(); ++i) {
+        buildTime -= parseTimes[i];
+      }
+      for (int i = 0; i < grammars.size(); ++i) {
+        grammars.get(i).statistics.parsed(parseTimes[i], i == 0 ? buildTime : 0, lengths[i], elementCounts[i], false);
+      }
+    }
+
+  }
+
 
   /**
    * A BasicFunction for the generated tixml parser.
+   * Like the ixml parser function, this can be called by several threads at the same time.
    */
   private static final class TixmlParser extends BasicFunction {
 
-    private Parser parser;
+    private final List<Stage> stages;
+    // The grammars of all stages, in the order of the stages and of their priority.
+    private final List<TaggingGrammar> grammars;
+    private final Charset encoding;
+    private final boolean writeBack;
+    // Whether the result is the spans of the nonterminals, instead of the marked-up input.
+    private final boolean spansOutput;
+    private final boolean traceToMap;
 
-    public TixmlParser(XQueryContext context, FunctionSignature signature, Parser parser) throws XPathException
+    public TixmlParser(XQueryContext context, FunctionSignature signature, List<Stage> stages, Charset encoding, boolean writeBack, boolean spansOutput,
+        boolean traceToMap) throws XPathException
     {
         super(context, signature);
-        this.parser = parser;
+        this.stages = stages;
+        this.grammars = new ArrayList<>();
+        for (Stage stage : stages) {
+          this.grammars.addAll(stage.grammars);
+        }
+        this.encoding = encoding;
+        this.writeBack = writeBack;
+        this.spansOutput = spansOutput;
+        this.traceToMap = traceToMap;
         // We must set the arguments, which is not done automatically from the signature.
         final List<Expression> ixmlParserArgs = new ArrayList<>(1);
         ixmlParserArgs.add(new Function.Placeholder(context));
@@ -173,64 +326,206 @@ public class FnTransparentInvisibleXml extends BasicFunction
     @Override
     public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException
     {
-      Item inputParameter = args[0].itemAt(0);
+      // Trace output is collected if it is returned, and logged otherwise.
+      final List<String> traceLines = traceToMap ? new ArrayList<>() : null;
+      // The results are built in the context of the calling query, which may not be the query that made this function.
+      final XQueryContext callingContext = ExtensionFunctionsModule.callingContext(context);
+      final TraceSink traceSink = new TraceSink(TraceSink.correlationId(callingContext, grammars.get(0).grammarHash), traceLines);
+      final Sequence result;
+      try {
+        result = parse(callingContext, args[0].itemAt(0), traceSink);
+      } catch (XPathException | RuntimeException e) {
+        traceSink.logLines();
+        throw e;
+      }
+      return traceLines == null ? result : TraceSink.toMap(this, result, traceLines);
+    }
+
+    // Parse a string, binary or node input.
+    private Sequence parse(XQueryContext callingContext, Item inputParameter, TraceSink traceSink) throws XPathException
+    {
+      final long startTime = System.nanoTime();
+      if (spansOutput) {
+        return parseSpans(callingContext, inputParameter, startTime, traceSink);
+      }
       // Create a SMAX document with a <wrapper> root element that will be removed later.
       SmaxDocument smaxDocument = null;
-      if (Type.subTypeOf(inputParameter.getType(), Type.STRING)) {
+      // The text content that is parsed. For string input this is the input itself, so it is not copied from the SMAX document.
+      String inputString = null;
+      if (Type.subTypeOf(inputParameter.getType(), Type.STRING) || inputParameter instanceof BinaryValue) {
         // Wrap the string in a wrapper element.
-        final String inputString = inputParameter.getStringValue();
+        inputString = ExtensionFunctionsModule.getInputString(inputParameter, encoding);
         final SmaxElement wrapper = new SmaxElement("wrapper").setStartPos(0).setEndPos(inputString.length());
         smaxDocument = new SmaxDocument(wrapper, inputString);
       } else if (Type.subTypeOf(inputParameter.getType(), Type.NODE)) {
-        Node inputNode = ((NodeValue) inputParameter).getNode();
-        if (inputNode instanceof Document || inputNode instanceof DocumentFragment) {
-          inputNode = inputNode.getFirstChild();
+        if (writeBack) {
+          return writeBack(callingContext, (NodeValue) inputParameter, startTime, traceSink);
         }
-        // Wrap the input node in a wrapper element.
-        Element inputElement = wrap(inputNode);
-        try{
-          smaxDocument = DomElement.toSmax(inputElement);
-        } catch (SmaxException e) {
+        // Stream the input node into a wrapper element.
+        try {
+          smaxDocument = SmaxReceiver.toSmax((NodeValue) inputParameter, "wrapper", context.getBroker());
+        } catch (SAXException e) {
           throw new XPathException(this, ErrorCodes.ERROR, e);
         }
       } else {
-        throw new XPathException(this, ErrorCodes.ERROR, "The generated NER function accepts a string or node, but not a "+Type.getTypeName(inputParameter.getType()));
+        throw new XPathException(this, ErrorCodes.ERROR, "The generated NER function accepts a string, binary data or node, but not a "+Type.getTypeName(inputParameter.getType()));
+      }
+      if (inputString == null) {
+        inputString = smaxDocument.getContentBuffer().toString();
       }
       // Do Named Entity Recognition on the SMAX document.
-      SmaxSerializer serializer = new SmaxSerializer(smaxDocument);
-      this.parser.parse(smaxDocument.getContentBuffer().toString(), serializer);
-      // Convert the SMAX document to something that eXist-db can use.
-      SAXAdapter saxAdapter = new SAXAdapter();
-      try {
-        SAX.fromSMAX(smaxDocument, saxAdapter);
-      } catch (SAXException e) {
-        throw new XPathException(this, ErrorCodes.ERROR, e);
+      final Tagging tagging = parse(callingContext, smaxDocument, inputString, traceSink);
+      // Build the content of the wrapper element, which is not part of the result.
+      final Sequence result = SmaxMemTreeBuilder.build(smaxDocument, callingContext);
+      tagging.parsed(System.nanoTime() - startTime);
+      return result;
+    }
+
+    /**
+     * Parse the text of a string, binary or node input, and return the spans of the nonterminals, without adding markup.
+     * For a node, the text is its string value, which is the same text that is marked up otherwise.
+     * The spans of several grammars are not merged, so they may overlap.
+     * @return A sequence of maps, as made by {@link SpanSerializer#toSequence}.
+     */
+    private Sequence parseSpans(XQueryContext callingContext, Item inputParameter, long startTime, TraceSink traceSink) throws XPathException
+    {
+      final String inputString;
+      if (Type.subTypeOf(inputParameter.getType(), Type.STRING) || inputParameter instanceof BinaryValue) {
+        inputString = ExtensionFunctionsModule.getInputString(inputParameter, encoding);
+      } else if (Type.subTypeOf(inputParameter.getType(), Type.NODE)) {
+        inputString = inputParameter.getStringValue();
+      } else {
+        throw new XPathException(this, ErrorCodes.ERROR, "The generated NER function accepts a string, binary data or node, but not a "+Type.getTypeName(inputParameter.getType()));
       }
-      DocumentImpl outputDocument = saxAdapter.getDocument();
-      // The document element is the wrapper, which must be removed.
-      final NodeList children = outputDocument.getDocumentElement().getChildNodes();
-      if(children.getLength() == 0) {
-          return Sequence.EMPTY_SEQUENCE;
+      final Tagging tagging = new Tagging(grammars);
+      final List<SpanSerializer.Span> spans = new ArrayList<>();
+      // The index of the first grammar of a stage in the grammars of all stages.
+      int first = 0;
+      for (Stage stage : stages) {
+        for (int i = first; i < first + stage.grammars.size(); ++i) {
+          final SpanSerializer serializer = new SpanSerializer();
+          parse(callingContext, stage.limits, i, inputString, serializer, traceSink, tagging);
+          tagging.elementCounts[i] += serializer.getSerialization().size();
+          spans.addAll(serializer.getSerialization());
+        }
+        first += stage.grammars.size();
       }
-      final ValueSequence result = new ValueSequence(children.getLength());
-      for(int i = 0; i < children.getLength(); i++) {
-        NodeValue child = (NodeValue)children.item(i);
-        result.add(child);
+      if (grammars.size() > 1) {
+        // The sort is stable, so spans with the same start stay in the order of the grammars.
+        spans.sort(Comparator.comparingInt(SpanSerializer.Span::getStart));
       }
-      return result;
+      tagging.parsed(System.nanoTime() - startTime);
+      return SpanSerializer.toSequence(this, spans);
     }
 
     /**
-     * The org.exist.dom.memtree.Element does not implement appendChild(), and org.exist.dom.persistent.ElementImpl does not want the owner element of `node`.
-     * Therefore, we have to make our own wrapper element, which needs to work for org.greenmercury.smax.convert.DomElement.toSmax(Element).
-     * @param node A node that must be wrapped in a "wrapper" element.
-     * @return The wrapper element.
+     * Add the markup from the parser to a stored element, or to the document element of a stored document.
+     * The document is locked and updated in a transaction, and only the parts that gained markup are replaced.
+     * @return The empty sequence.
      */
-    private Element wrap(Node node)
+    private Sequence writeBack(XQueryContext callingContext, NodeValue input, long startTime, TraceSink traceSink) throws XPathException
+    {
+      if (input.getImplementationType() != NodeValue.PERSISTENT_NODE) {
+        throw new XPathException(this, ErrorCodes.ERROR, "The option \"" + ExtensionFunctionsModule.WRITE_BACK_OPTION + "\" needs a node from a stored document");
+      }
+      if (callingContext == null) {
+        throw new XPathException(this, ErrorCodes.ERROR, "With the option \"" + ExtensionFunctionsModule.WRITE_BACK_OPTION + "\", the parser function must be called by a query");
+      }
+      final DocumentImpl document = (DocumentImpl) input.getOwnerDocument();
+      final Node inputNode = input.getType() == Type.DOCUMENT ? document.getDocumentElement() : input.getNode();
+      if (!(inputNode instanceof ElementImpl)) {
+        throw new XPathException(this, ErrorCodes.ERROR, "The option \"" + ExtensionFunctionsModule.WRITE_BACK_OPTION + "\" needs a stored element or document");
+      }
+      final ElementImpl element = (ElementImpl) inputNode;
+      if (!document.getPermissions().validate(callingContext.getSubject(), Permission.WRITE)) {
+        throw new XPathException(this, ErrorCodes.ERROR, "No permission to write to " + document.getURI());
+      }
+      try {
+        final Tagging tagging = StoredMarkupWriter.writeBack(callingContext.getBroker(), element, callingContext,
+            (smaxDocument, inputString) -> parse(callingContext, smaxDocument, inputString, traceSink));
+        tagging.parsed(System.nanoTime() - startTime);
+      } catch (LockException | SAXException | TransactionException | DOMException e) {
+        throw new XPathException(this, ErrorCodes.ERROR, "Cannot write back to " + document.getURI() + ": " + e.getMessage(), e);
+      }
+      // The document is only defragmented if it has become too fragmented.
+      try {
+        final DefaultDocumentSet documents = new DefaultDocumentSet(1);
+        documents.add(document);
+        Modification.checkFragmentation(callingContext, documents);
+      } catch (EXistException | LockException e) {
+        logger.warn("Cannot defragment " + document.getURI(), e);
+      }
+      return Sequence.EMPTY_SEQUENCE;
+    }
+
+
+    // Parse the text content of a SMAX document with the grammars of each stage, and add the markup to the document.
+    private Tagging parse(XQueryContext callingContext, SmaxDocument smaxDocument, String inputString, TraceSink traceSink) throws XPathException
     {
-      Element wrapper = new VerySimpleElementImpl("wrapper");
-      wrapper.appendChild(node);
-      return wrapper;
+      final Tagging tagging = new Tagging(grammars);
+      // The index of the first grammar of a stage in the grammars of all stages.
+      int first = 0;
+      for (Stage stage : stages) {
+        parse(callingContext, stage, first, smaxDocument, inputString, traceSink, tagging);
+        first += stage.grammars.size();
+      }
+      return tagging;
+    }
+
+    // Add the markup of one stage. The markup of earlier stages is kept, and new markup is merged around it or into it.
+    private void parse(XQueryContext callingContext, Stage stage, int first, SmaxDocument smaxDocument, String inputString, TraceSink traceSink, Tagging tagging) throws XPathException
+    {
+      final MarkupMerger merger = stage.grammars.size() == 1 ? null : new MarkupMerger(smaxDocument);
+      if (stage.scope == null) {
+        parse(callingContext, stage, first, merger, smaxDocument, inputString, 0, traceSink, tagging);
+        return;
+      }
+      // The segments are found before the markup of this stage is added. They are parsed separately, so no markup crosses their boundaries.
+      final List<int[]> segments = stage.scope.getSegments(smaxDocument);
+      // The maximum input length applies to all text in scope together, as if it was one input.
+      long scopedLength = 0;
+      for (int[] segment : segments) {
+        scopedLength += segment[1] - segment[0];
+      }
+      stage.limits.checkInputLength(this, scopedLength);
+      for (int[] segment : segments) {
+        parse(callingContext, stage, first, merger, smaxDocument, inputString.substring(segment[0], segment[1]), segment[0], traceSink, tagging);
+      }
+    }
+
+    // Add the markup of one stage to a segment of the text content, which starts at offset.
+    private void parse(XQueryContext callingContext, Stage stage, int first, MarkupMerger merger, SmaxDocument smaxDocument, String segment, int offset, TraceSink traceSink,
+        Tagging tagging) throws XPathException
+    {
+      if (merger == null) {
+        final SmaxSerializer serializer = new SmaxSerializer(smaxDocument, null, offset);
+        parse(callingContext, stage.limits, first, segment, serializer, traceSink, tagging);
+        tagging.elementCounts[first] += serializer.getElementCount();
+        return;
+      }
+      // The markup does not change the text, so each grammar parses the same text, and its markup is merged before the next grammar.
+      for (int i = first; i < first + stage.grammars.size(); ++i) {
+        final List<SmaxElement> newElements = new ArrayList<>();
+        final SmaxSerializer serializer = new SmaxSerializer(smaxDocument, newElements, offset);
+        parse(callingContext, stage.limits, i, segment, serializer, traceSink, tagging);
+        tagging.elementCounts[i] += serializer.getElementCount();
+        merger.merge(newElements);
+      }
+    }
+
+    // Parse the input with one of the grammars within the limits. A failure is counted in the statistics of that grammar.
+    private void parse(XQueryContext callingContext, ParseLimits limits, int grammar, String inputString, Serializer<?> serializer, TraceSink traceSink, Tagging tagging) throws XPathException
+    {
+      final TaggingGrammar taggingGrammar = grammars.get(grammar);
+      final long parseStartTime = System.nanoTime();
+      try {
+        limits.parse(this, callingContext, taggingGrammar.parser, inputString, serializer, traceSink);
+      } catch (XPathException | RuntimeException e) {
+        taggingGrammar.statistics.parsed(System.nanoTime() - parseStartTime, 0, inputString.length(), 0, true);
+        throw e;
+      }
+      tagging.parseTimes[grammar] += System.nanoTime() - parseStartTime;
+      tagging.lengths[grammar] += inputString.length();
     }
 
   }
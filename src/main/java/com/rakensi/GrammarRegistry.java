@@ -0,0 +1,261 @@
+package com.rakensi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.XPathException;
+
+import de.bottlecaps.markup.blitz.Parser;
+
+/**
+ * A registry of named grammars.
+ * Each registered grammar is stored as an ixml file with its options in a properties file, in the registry directory.
+ * Grammars can also be packaged in the jar by the build, see {@link GrammarCompiler}. A registered grammar replaces a packaged grammar with the same name.
+ * When the registry is opened, all packaged and stored grammars are loaded, and their parsers are generated in a background thread.
+ */
+public class GrammarRegistry
+{
+
+  private static final org.apache.logging.log4j.Logger logger = org.apache.logging.log4j.LogManager.getLogger(GrammarRegistry.class);
+
+  private static final String GRAMMAR_EXTENSION = ".ixml";
+  private static final String OPTIONS_EXTENSION = ".properties";
+
+  // The resource directory with packaged grammars, relative to this class, and the file that lists their names.
+  static final String PACKAGED_GRAMMARS = "grammars/";
+  static final String PACKAGED_GRAMMARS_INDEX = "index";
+
+  // Grammar names are used as file names, so they are restricted.
+  private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_.-]*");
+
+  private final Path directory;
+  private final Map<String, RegisteredGrammar> grammars;
+
+  public GrammarRegistry(Path directory) {
+    this.directory = directory;
+    this.grammars = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Load the packaged grammars and the grammars stored in the registry directory, and generate their parsers in the background.
+   */
+  public void open() {
+    loadPackagedGrammars();
+    loadStoredGrammars();
+    if (!grammars.isEmpty()) {
+      final Thread warmUp = new Thread(this::warmUp, "ixml-grammar-registry-warm-up");
+      warmUp.setDaemon(true);
+      warmUp.start();
+    }
+  }
+
+  // Load the grammars that the build has put in the jar.
+  private void loadPackagedGrammars() {
+    try (InputStream indexStream = GrammarRegistry.class.getResourceAsStream(PACKAGED_GRAMMARS + PACKAGED_GRAMMARS_INDEX)) {
+      if (indexStream == null) {
+        return;
+      }
+      for (String name : new String(indexStream.readAllBytes(), StandardCharsets.UTF_8).split("\\s+")) {
+        if (name.isEmpty()) {
+          continue;
+        }
+        try (InputStream grammarStream = GrammarRegistry.class.getResourceAsStream(PACKAGED_GRAMMARS + name + GRAMMAR_EXTENSION);
+             InputStream optionsStream = GrammarRegistry.class.getResourceAsStream(PACKAGED_GRAMMARS + name + OPTIONS_EXTENSION)) {
+          if (grammarStream == null) {
+            logger.error("The packaged grammar " + name + " is missing");
+            continue;
+          }
+          grammars.put(name, new RegisteredGrammar(new String(grammarStream.readAllBytes(), StandardCharsets.UTF_8), readOptions(optionsStream)));
+        }
+      }
+    } catch (IOException e) {
+      logger.error("Cannot read the packaged grammars", e);
+    }
+  }
+
+  // Load the grammars in the registry directory.
+  private void loadStoredGrammars() {
+    if (directory == null || !Files.isDirectory(directory)) {
+      return;
+    }
+    try (DirectoryStream<Path> grammarFiles = Files.newDirectoryStream(directory, "*" + GRAMMAR_EXTENSION)) {
+      for (Path grammarFile : grammarFiles) {
+        final String fileName = grammarFile.getFileName().toString();
+        final String name = fileName.substring(0, fileName.length() - GRAMMAR_EXTENSION.length());
+        try {
+          final String grammar = Files.readString(grammarFile, StandardCharsets.UTF_8);
+          final Path optionsFile = directory.resolve(name + OPTIONS_EXTENSION);
+          final Map<String, String> options;
+          if (Files.exists(optionsFile)) {
+            try (InputStream optionsStream = Files.newInputStream(optionsFile)) {
+              options = readOptions(optionsStream);
+            }
+          } else {
+            options = new TreeMap<>();
+          }
+          grammars.put(name, new RegisteredGrammar(grammar, options));
+        } catch (IOException e) {
+          logger.error("Cannot load grammar " + name + " from " + grammarFile, e);
+        }
+      }
+    } catch (IOException e) {
+      logger.error("Cannot read the grammar registry in " + directory, e);
+    }
+  }
+
+  // Read the options of a grammar from a properties file, which may be absent (null).
+  static Map<String, String> readOptions(InputStream optionsStream) throws IOException {
+    final Map<String, String> options = new TreeMap<>();
+    if (optionsStream != null) {
+      final Properties properties = new Properties();
+      properties.load(optionsStream);
+      properties.stringPropertyNames().forEach(key -> options.put(key, properties.getProperty(key)));
+    }
+    return options;
+  }
+
+  // Whether a grammar name can be used as a file name.
+  static boolean isValidName(String name) {
+    return NAME_PATTERN.matcher(name).matches();
+  }
+
+  /**
+   * Register a grammar under a name, replacing any grammar with the same name.
+   * The parser is generated immediately, so grammar errors are reported to the caller.
+   */
+  public void register(String name, String grammar, Map<String, String> options) throws XPathException {
+    if (!isValidName(name)) {
+      throw new XPathException(ErrorCodes.ERROR, "Invalid grammar name \"" + name + "\"");
+    }
+    final RegisteredGrammar registeredGrammar = new RegisteredGrammar(grammar, new TreeMap<>(options));
+    registeredGrammar.getParser();
+    if (directory != null) {
+      try {
+        Files.createDirectories(directory);
+        // The files are written next to their final names and then moved, so a crash never leaves a partial grammar or options file.
+        // The options are moved first, because a grammar is loaded when its grammar file is found.
+        final Path optionsFile = Files.createTempFile(directory, name, OPTIONS_EXTENSION + ".tmp");
+        try {
+          final Properties properties = new Properties();
+          properties.putAll(options);
+          try (OutputStream optionsStream = Files.newOutputStream(optionsFile)) {
+            properties.store(optionsStream, "Options for ixml grammar " + name);
+          }
+          Files.move(optionsFile, directory.resolve(name + OPTIONS_EXTENSION), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+          Files.deleteIfExists(optionsFile);
+        }
+        final Path grammarFile = Files.createTempFile(directory, name, GRAMMAR_EXTENSION + ".tmp");
+        try {
+          Files.writeString(grammarFile, grammar, StandardCharsets.UTF_8);
+          Files.move(grammarFile, directory.resolve(name + GRAMMAR_EXTENSION), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+          Files.deleteIfExists(grammarFile);
+        }
+      } catch (IOException e) {
+        throw new XPathException(ErrorCodes.ERROR, "Cannot store grammar " + name + " in " + directory, e);
+      }
+    }
+    grammars.put(name, registeredGrammar);
+  }
+
+  /**
+   * Get the parser for a registered grammar.
+   * @return The parser, or null if there is no grammar with this name.
+   */
+  public Parser getParser(String name) throws XPathException {
+    final RegisteredGrammar registeredGrammar = grammars.get(name);
+    return registeredGrammar == null ? null : registeredGrammar.getParser();
+  }
+
+  /**
+   * Get the number of conflicts in the tables of the parser of a registered grammar, which is counted when the parser is generated.
+   * @return The number of conflicts, or -1 if there is no grammar with this name or the conflicts cannot be counted.
+   */
+  public int getConflicts(String name) throws XPathException {
+    final RegisteredGrammar registeredGrammar = grammars.get(name);
+    if (registeredGrammar == null) {
+      return -1;
+    }
+    registeredGrammar.getParser();
+    return registeredGrammar.conflicts;
+  }
+
+  /**
+   * Get the options of a registered grammar.
+   * @return The option names and values, or null if there is no grammar with this name.
+   */
+  public Map<String, String> getOptions(String name) {
+    final RegisteredGrammar registeredGrammar = grammars.get(name);
+    return registeredGrammar == null ? null : registeredGrammar.options;
+  }
+
+  /**
+   * Get the hash of a registered grammar, as computed by {@link ParserCache#hash(String)}.
+   * @return The hash, or null if there is no grammar with this name.
+   */
+  public String getGrammarHash(String name) {
+    final RegisteredGrammar registeredGrammar = grammars.get(name);
+    return registeredGrammar == null ? null : registeredGrammar.grammarHash;
+  }
+
+  /**
+   * Get the registry directory, which is also used for other files that must survive a restart.
+   * @return The directory, or null if grammars are not stored.
+   */
+  public Path getDirectory() {
+    return directory;
+  }
+
+  private void warmUp() {
+    long startTime = System.currentTimeMillis();
+    grammars.forEach((name, registeredGrammar) -> {
+      try {
+        registeredGrammar.getParser();
+      } catch (Exception e) {
+        logger.error("Cannot generate a parser for grammar " + name, e);
+      }
+    });
+    logger.info("Generated parsers for " + grammars.size() + " registered grammars in " + (System.currentTimeMillis() - startTime) + " ms");
+  }
+
+  /**
+   * A grammar with its options, and its parser once it has been generated.
+   */
+  private static final class RegisteredGrammar {
+
+    private final String grammar;
+    private final String grammarHash;
+    private final Map<String, String> options;
+    private Parser parser;
+    private int conflicts;
+
+    public RegisteredGrammar(String grammar, Map<String, String> options) {
+      this.grammar = grammar;
+      this.grammarHash = ParserCache.hash(grammar);
+      this.options = options;
+    }
+
+    public synchronized Parser getParser() throws XPathException {
+      if (parser == null) {
+        parser = ExtensionFunctionsModule.newParser(grammar, ExtensionFunctionsModule.parseOptions(options));
+        conflicts = ExtensionFunctionsModule.countConflicts(parser);
+      }
+      return parser;
+    }
+
+  }
+
+}
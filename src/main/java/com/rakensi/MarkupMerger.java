@@ -0,0 +1,74 @@
+package com.rakensi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.greenmercury.smax.Balancing;
+import org.greenmercury.smax.SmaxDocument;
+import org.greenmercury.smax.SmaxElement;
+
+/**
+ * Merges the markup of several grammars into one SMAX document, in the order of their priority.
+ * New elements may be nested in each other, also when they come from different grammars.
+ * A new element that overlaps an element of a grammar with a higher priority, without being nested in it or containing it, is a conflict.
+ * Such an element is left out.
+ */
+public class MarkupMerger
+{
+
+  private final SmaxDocument document;
+  // The spans of the merged elements, as end positions by start position, and as start positions by end position.
+  private final TreeMap<Integer, List<Integer>> endsByStart;
+  private final TreeMap<Integer, List<Integer>> startsByEnd;
+
+  public MarkupMerger(SmaxDocument document) {
+    this.document = document;
+    this.endsByStart = new TreeMap<>();
+    this.startsByEnd = new TreeMap<>();
+  }
+
+  /**
+   * Merge the top-level new elements of one grammar, as collected by {@link SmaxSerializer}.
+   * The grammars must be merged from the highest to the lowest priority.
+   * @return The number of elements that were merged.
+   */
+  public int merge(List<SmaxElement> elements) {
+    final List<SmaxElement> accepted = new ArrayList<>(elements.size());
+    for (SmaxElement element : elements) {
+      if (!crosses(element.getStartPos(), element.getEndPos())) {
+        accepted.add(element);
+      }
+    }
+    // The elements of one grammar do not overlap, so they are only added after all of them have been checked.
+    for (SmaxElement element : accepted) {
+      endsByStart.computeIfAbsent(element.getStartPos(), start -> new ArrayList<>(1)).add(element.getEndPos());
+      startsByEnd.computeIfAbsent(element.getEndPos(), end -> new ArrayList<>(1)).add(element.getStartPos());
+      document.mergeMarkup(element, Balancing.INNER);
+    }
+    return accepted.size();
+  }
+
+  // Whether a span overlaps a merged span, without one of them containing the other.
+  private boolean crosses(int start, int end) {
+    // A merged span that starts within this span must end within it.
+    for (Map.Entry<Integer, List<Integer>> entry : endsByStart.subMap(start, false, end, false).entrySet()) {
+      for (int mergedEnd : entry.getValue()) {
+        if (mergedEnd > end) {
+          return true;
+        }
+      }
+    }
+    // A merged span that ends within this span must start within it.
+    for (Map.Entry<Integer, List<Integer>> entry : startsByEnd.subMap(start, false, end, false).entrySet()) {
+      for (int mergedStart : entry.getValue()) {
+        if (mergedStart < start) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+}
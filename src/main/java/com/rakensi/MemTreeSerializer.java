@@ -0,0 +1,179 @@
+package com.rakensi;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.DocumentImpl;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xquery.XQueryContext;
+
+import de.bottlecaps.markup.blitz.Errors;
+import de.bottlecaps.markup.blitz.Parser;
+import de.bottlecaps.markup.blitz.Serializer;
+
+/**
+ * A Markup Blitz serializer that builds an eXist-db in-memory document directly from the parser events,
+ * without serializing the parse result to a string and parsing that as XML.
+ * When only some elements are selected, the document element contains only the selected elements, at any depth,
+ * and the other elements are not built at all.
+ */
+public class MemTreeSerializer implements Serializer<DocumentImpl>
+{
+
+  private static final String IXML_PREFIX = "ixml";
+  private static final String IXML_STATE_ATTRIBUTE = IXML_PREFIX + ":state";
+  private static final String IXML_STATE_FAILED = "failed";
+
+  private MemTreeBuilder builder;
+  private Map<String, QName> names;
+  private int attributeLevel;
+  private String attributeName;
+  private StringBuilder content;
+  private int elementCount;
+  private boolean failed;
+  // The names of the selected elements, or null if all elements are built.
+  private final Set<String> select;
+  // The element level, where the document element is at level 1, and the level of the selected element that is being built, or 0.
+  private int level;
+  private int selectedLevel;
+  // Whether the current attribute is not built, because its element is not built.
+  private boolean skipAttribute;
+
+  public MemTreeSerializer(XQueryContext context) {
+    this(context, null);
+  }
+
+  /**
+   * @param select The names of the elements that are built within the document element, or null to build all elements.
+   */
+  public MemTreeSerializer(XQueryContext context, Set<String> select) {
+    this.select = select;
+    level = 0;
+    selectedLevel = 0;
+    skipAttribute = false;
+    builder = new MemTreeBuilder(context);
+    builder.startDocument();
+    names = new HashMap<>();
+    attributeLevel = 0;
+    attributeName = null;
+    content = new StringBuilder();
+    elementCount = 0;
+    failed = false;
+  }
+
+  @Override
+  public void startNonterminal(String name) {
+    flushCharacters();
+    ++level;
+    if (selectedLevel == 0 && level > 1 && select != null && select.contains(name)) {
+      selectedLevel = level;
+    }
+    if (isBuilding()) {
+      builder.startElement(qName(name), null);
+      ++elementCount;
+    }
+  }
+
+  @Override
+  public void endNonterminal(String name) {
+    flushCharacters();
+    if (isBuilding()) {
+      builder.endElement();
+    }
+    if (selectedLevel == level) {
+      selectedLevel = 0;
+    }
+    --level;
+  }
+
+  @Override
+  public void startAttribute(String name) {
+    flushCharacters();
+    ++attributeLevel;
+    attributeName = name;
+    skipAttribute = !isBuilding();
+  }
+
+  @Override
+  public void endAttribute() {
+    final String value = content.toString();
+    content.setLength(0);
+    if (skipAttribute) {
+      // Skip the attribute.
+    } else if (attributeName.equals(XMLConstants.XMLNS_ATTRIBUTE)) {
+      builder.namespaceNode(XMLConstants.DEFAULT_NS_PREFIX, value);
+    } else if (attributeName.startsWith(XMLConstants.XMLNS_ATTRIBUTE + ":")) {
+      builder.namespaceNode(attributeName.substring(XMLConstants.XMLNS_ATTRIBUTE.length() + 1), value);
+    } else if (attributeName.startsWith(IXML_PREFIX + ":")) {
+      // Attributes like ixml:state are in the ixml namespace.
+      builder.namespaceNode(IXML_PREFIX, Parser.IXML_NAMESPACE);
+      if (attributeName.equals(IXML_STATE_ATTRIBUTE) && value.contains(IXML_STATE_FAILED)) {
+        failed = true;
+      }
+      builder.addAttribute(new QName(attributeName.substring(IXML_PREFIX.length() + 1), Parser.IXML_NAMESPACE, IXML_PREFIX), value);
+    } else {
+      builder.addAttribute(qName(attributeName), value);
+    }
+    --attributeLevel;
+    attributeName = null;
+  }
+
+  @Override
+  public void terminal(int codepoint) {
+    if (! XmlChars.isXmlChar(codepoint))
+      Errors.D04.thro(Character.toString(codepoint));
+    if (isBuilding()) {
+      content.appendCodePoint(codepoint);
+    }
+  }
+
+  @Override
+  public void excluded(int length)
+  {
+  }
+
+  @Override
+  public DocumentImpl getSerialization()
+  {
+    flushCharacters();
+    builder.endDocument();
+    return builder.getDocument();
+  }
+
+  /**
+   * The number of elements in the result.
+   */
+  public int getElementCount() {
+    return elementCount;
+  }
+
+  /**
+   * Whether the result reports that the input could not be parsed, which happens when 'fail-on-error' is not set.
+   */
+  public boolean isFailed() {
+    return failed;
+  }
+
+  // Whether the events at the current level are built. The document element, with its attributes and text, is always built.
+  private boolean isBuilding() {
+    return select == null || level <= 1 || selectedLevel > 0;
+  }
+
+  // Element and attribute names repeat a lot, so make each QName only once.
+  private QName qName(String name) {
+    return names.computeIfAbsent(name, n -> new QName(n, XMLConstants.NULL_NS_URI));
+  }
+
+  // Text is collected per character, and written as one text node.
+  private void flushCharacters() {
+    if (attributeLevel == 0 && content.length() > 0) {
+      builder.characters(content);
+      content.setLength(0);
+    }
+  }
+
+}
@@ -0,0 +1,137 @@
+package com.rakensi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.bottlecaps.markup.blitz.Serializer;
+
+/**
+ * A Markup Blitz serializer that records the parser events, so they can be replayed into another serializer later.
+ * This is used when parsing must happen on a different thread than building the result,
+ * because the eXist-db in-memory document builder must be used by the thread that runs the query.
+ * Consecutive terminals are recorded as one event.
+ */
+public class ParseEvents implements Serializer<ParseEvents>
+{
+
+  static final int START_NONTERMINAL = 0;
+  static final int END_NONTERMINAL = 1;
+  static final int START_ATTRIBUTE = 2;
+  static final int END_ATTRIBUTE = 3;
+  static final int TERMINALS = 4;
+  static final int EXCLUDED = 5;
+
+  // Each event is an event code followed by one argument: a name index, a number of codepoints, or a length.
+  private int[] events;
+  private int size;
+  private final List<String> names;
+  private final Map<String, Integer> nameIndexes;
+  private final StringBuilder terminals;
+
+  public ParseEvents() {
+    events = new int[256];
+    size = 0;
+    names = new ArrayList<>();
+    nameIndexes = new HashMap<>();
+    terminals = new StringBuilder();
+  }
+
+  @Override
+  public void startNonterminal(String name) {
+    add(START_NONTERMINAL, nameIndex(name));
+  }
+
+  @Override
+  public void endNonterminal(String name) {
+    add(END_NONTERMINAL, nameIndex(name));
+  }
+
+  @Override
+  public void startAttribute(String name) {
+    add(START_ATTRIBUTE, nameIndex(name));
+  }
+
+  @Override
+  public void endAttribute() {
+    add(END_ATTRIBUTE, 0);
+  }
+
+  @Override
+  public void terminal(int codepoint) {
+    terminals.appendCodePoint(codepoint);
+    if (size > 0 && events[size - 2] == TERMINALS) {
+      ++events[size - 1];
+    } else {
+      add(TERMINALS, 1);
+    }
+  }
+
+  @Override
+  public void excluded(int length)
+  {
+    add(EXCLUDED, length);
+  }
+
+  @Override
+  public ParseEvents getSerialization()
+  {
+    return this;
+  }
+
+  /**
+   * Send the recorded events to another serializer.
+   * @param serializer The serializer that receives the events.
+   * @return The serialization of the receiving serializer.
+   */
+  public <T> T replay(Serializer<T> serializer) {
+    int charPointer = 0;
+    for (int i = 0; i < size; i += 2) {
+      final int argument = events[i + 1];
+      switch (events[i]) {
+        case START_NONTERMINAL:
+          serializer.startNonterminal(names.get(argument));
+          break;
+        case END_NONTERMINAL:
+          serializer.endNonterminal(names.get(argument));
+          break;
+        case START_ATTRIBUTE:
+          serializer.startAttribute(names.get(argument));
+          break;
+        case END_ATTRIBUTE:
+          serializer.endAttribute();
+          break;
+        case TERMINALS:
+          for (int n = 0; n < argument; ++n) {
+            final int codepoint = terminals.codePointAt(charPointer);
+            serializer.terminal(codepoint);
+            charPointer += Character.charCount(codepoint);
+          }
+          break;
+        case EXCLUDED:
+          serializer.excluded(argument);
+          break;
+      }
+    }
+    return serializer.getSerialization();
+  }
+
+  private void add(int event, int argument) {
+    if (size + 2 > events.length) {
+      final int[] newEvents = new int[events.length * 2];
+      System.arraycopy(events, 0, newEvents, 0, size);
+      events = newEvents;
+    }
+    events[size++] = event;
+    events[size++] = argument;
+  }
+
+  private int nameIndex(String name) {
+    return nameIndexes.computeIfAbsent(name, n -> {
+      names.add(n);
+      return names.size() - 1;
+    });
+  }
+
+}
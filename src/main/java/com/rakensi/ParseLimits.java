@@ -0,0 +1,241 @@
+package com.rakensi;
+
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.Expression;
+import org.exist.xquery.TerminatedException;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+
+import de.bottlecaps.markup.blitz.Parser;
+import de.bottlecaps.markup.blitz.Serializer;
+
+/**
+ * The limits of a parse, from the options 'max-input-length' and 'timeout'.
+ * Markup Blitz does not check for interruption while it parses.
+ * Therefore, a parse with a timeout runs on a parse thread, while the query thread waits for it,
+ * checking the timeout and the query watchdog, so a query that is killed or times out stops waiting.
+ * A parse that is stopped keeps its thread until Markup Blitz finishes, and its result is discarded.
+ * There are as many parse threads as processors, so stopped parses cannot take more processors than that.
+ * The inputs of parse-all are parsed on a pool of their own, and are stopped in the same way.
+ * Stopped parses on both pools are counted together, because they take the same processors.
+ * When there are as many stopped parses as processors, a new parse with a timeout or parse-all fails at once, instead of waiting for a thread.
+ * A parse without a timeout runs on the query thread, so it cannot be stopped by the watchdog once it has started.
+ */
+public final class ParseLimits
+{
+
+  public static final ParseLimits NONE = new ParseLimits(-1, -1);
+
+  // How often the query watchdog is checked while waiting for a parse.
+  private static final long WATCHDOG_INTERVAL_MS = 100;
+
+  // The states of a parse on a parse thread.
+  private static final int QUEUED = 0;
+  private static final int RUNNING = 1;
+  private static final int DONE = 2;
+  private static final int STOPPED = 3;
+
+  // The threads for parses with a timeout.
+  private static final int PARSE_THREADS = Runtime.getRuntime().availableProcessors();
+  private static final AtomicInteger threadNumber = new AtomicInteger();
+  private static final ExecutorService parseThreads = Executors.newFixedThreadPool(PARSE_THREADS, runnable -> {
+    final Thread thread = new Thread(runnable, "ixml-parse-" + threadNumber.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  });
+  // The number of threads that are still busy with a stopped parse.
+  private static final AtomicInteger stoppedParses = new AtomicInteger();
+
+  // The maximum input length in characters, and the timeout in milliseconds, or -1 if there is no limit.
+  private final long maxInputLength;
+  private final long timeout;
+
+  private ParseLimits(long maxInputLength, long timeout) {
+    this.maxInputLength = maxInputLength;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Get the limits from the options that are handled by this module.
+   */
+  public static ParseLimits fromOptions(final Map<String, String> options) throws XPathException {
+    final long maxInputLength = getLimit(options, ExtensionFunctionsModule.MAX_INPUT_LENGTH_OPTION);
+    final long timeout = getLimit(options, ExtensionFunctionsModule.TIMEOUT_OPTION);
+    return maxInputLength < 0 && timeout < 0 ? NONE : new ParseLimits(maxInputLength, timeout);
+  }
+
+  /**
+   * Check the length of an input before it is parsed.
+   */
+  public void checkInputLength(final Expression caller, final long length) throws XPathException {
+    if (maxInputLength >= 0 && length > maxInputLength) {
+      throw new XPathException(caller, ErrorCodes.ERROR, "The input has " + length + " characters, which is more than the \"" +
+          ExtensionFunctionsModule.MAX_INPUT_LENGTH_OPTION + "\" of " + maxInputLength);
+    }
+  }
+
+  public boolean hasTimeout() {
+    return timeout >= 0;
+  }
+
+  /**
+   * Parse an input within the limits.
+   * Without a timeout, the input is parsed on the current thread, otherwise on a parse thread.
+   * The query watchdog is checked before a parse on the current thread, and while waiting for a parse thread.
+   * The serializer must not need the thread of the query when there is a timeout.
+   * @param queryContext The context of the query whose watchdog is checked, or null.
+   * @param traceSink The trace sink of the parse. On a parse thread, the lines are collected apart, and added when the parse has finished.
+   */
+  public void parse(final Expression caller, final XQueryContext queryContext, final Parser parser, final String input, final Serializer<?> serializer,
+      final TraceSink traceSink) throws XPathException {
+    checkInputLength(caller, input.length());
+    if (timeout < 0) {
+      if (queryContext != null) {
+        queryContext.getWatchDog().proceed(caller);
+      }
+      final TraceSink previousTraceSink = traceSink.activate();
+      try {
+        parser.parse(input, serializer);
+      } finally {
+        traceSink.deactivate(previousTraceSink);
+      }
+      return;
+    }
+    checkParseThreads(caller);
+    // A stopped parse may still write trace output, so it gets a trace sink of its own.
+    final TraceSink parseTraceSink = traceSink.copy();
+    final StoppableParse stoppableParse = new StoppableParse();
+    final Future<?> parse = parseThreads.submit(() -> {
+      if (!stoppableParse.start()) {
+        return;
+      }
+      final TraceSink previousTraceSink = parseTraceSink.activate();
+      try {
+        parser.parse(input, serializer);
+      } finally {
+        parseTraceSink.deactivate(previousTraceSink);
+        stoppableParse.finish();
+      }
+    });
+    try {
+      await(caller, queryContext, parse);
+    } catch (XPathException e) {
+      stoppableParse.stop();
+      throw e;
+    } catch (ExecutionException e) {
+      traceSink.addLines(parseTraceSink);
+      if (e.getCause() instanceof RuntimeException) {
+        // Report parse errors as if the input was parsed on this thread.
+        throw (RuntimeException) e.getCause();
+      }
+      throw new XPathException(caller, ErrorCodes.ERROR, e.getCause().getMessage(), e.getCause());
+    }
+    traceSink.addLines(parseTraceSink);
+  }
+
+  /**
+   * Wait for parsing on another thread, checking the timeout and the query watchdog.
+   * When the timeout has passed, or the query is terminated, the parse is cancelled.
+   * @param queryContext The context of the query whose watchdog is checked, or null.
+   * @return The result of the parse.
+   */
+  public <T> T await(final Expression caller, final XQueryContext queryContext, final Future<T> parse) throws XPathException, ExecutionException {
+    final long startTime = System.nanoTime();
+    try {
+      while (true) {
+        long wait = WATCHDOG_INTERVAL_MS;
+        if (timeout >= 0) {
+          final long remaining = timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+          if (remaining <= 0) {
+            parse.cancel(true);
+            throw new XPathException(caller, ErrorCodes.ERROR, "The parse was stopped, because it took more than the \"" +
+                ExtensionFunctionsModule.TIMEOUT_OPTION + "\" of " + timeout + " ms");
+          }
+          wait = Math.min(wait, remaining);
+        }
+        try {
+          return parse.get(wait, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          if (queryContext != null) {
+            try {
+              queryContext.getWatchDog().proceed(caller);
+            } catch (TerminatedException terminated) {
+              parse.cancel(true);
+              throw terminated;
+            }
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      parse.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new XPathException(caller, ErrorCodes.ERROR, "Parsing was interrupted", e);
+    }
+  }
+
+  /**
+   * Fail at once when stopped parses, which cannot be interrupted, are still busy on as many threads as there are processors.
+   */
+  static void checkParseThreads(final Expression caller) throws XPathException {
+    if (stoppedParses.get() >= PARSE_THREADS) {
+      throw new XPathException(caller, ErrorCodes.ERROR, "All " + PARSE_THREADS + " parse threads are still busy with stopped parses");
+    }
+  }
+
+  /**
+   * The state of one parse on a pool thread.
+   * The parse thread calls {@link #start()} before it parses, and {@link #finish()} after, and the waiting thread calls {@link #stop()} when it gives up.
+   * A parse that was stopped before it started is skipped. A parse that was stopped while it runs counts as a stopped parse until it finishes.
+   */
+  static final class StoppableParse {
+
+    private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+    /**
+     * @return Whether the parse may run, which is false if it was stopped before it started.
+     */
+    boolean start() {
+      return state.compareAndSet(QUEUED, RUNNING);
+    }
+
+    void finish() {
+      if (!state.compareAndSet(RUNNING, DONE)) {
+        stoppedParses.decrementAndGet();
+      }
+    }
+
+    void stop() {
+      if (state.getAndSet(STOPPED) == RUNNING) {
+        stoppedParses.incrementAndGet();
+      }
+    }
+
+  }
+
+  // Get a limit, which must be a positive integer, or -1 if the option is absent.
+  private static long getLimit(final Map<String, String> options, final String name) throws XPathException {
+    final String limit = options.get(name);
+    if (limit == null) {
+      return -1;
+    }
+    try {
+      final long value = Long.parseLong(limit.trim());
+      if (value > 0) {
+        return value;
+      }
+    } catch (NumberFormatException e) {
+      // Fall through to the error below.
+    }
+    throw new XPathException(ErrorCodes.ERROR, "The option \"" + name + "\" must be a positive integer, not \"" + limit + "\"");
+  }
+
+}
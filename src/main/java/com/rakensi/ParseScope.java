@@ -0,0 +1,145 @@
+package com.rakensi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.XPathException;
+import org.greenmercury.smax.SmaxDocument;
+import org.greenmercury.smax.SmaxElement;
+
+/**
+ * The parts of a SMAX document that a tixml parser parses, from the 'include' and 'exclude' options.
+ * Each option has element names or simple paths like 'chapter/title', separated by whitespace.
+ * A path matches an element with the last name, whose parent and further ancestors have the names before it.
+ * Only the text in an included element is parsed, but not the text in an excluded element.
+ * Without 'include', all text that is not in an excluded element is parsed.
+ */
+public final class ParseScope
+{
+
+  // The paths, with the names of each path in document order, or null if the option is absent.
+  private final List<String[]> include;
+  private final List<String[]> exclude;
+
+  private ParseScope(List<String[]> include, List<String[]> exclude) {
+    this.include = include;
+    this.exclude = exclude;
+  }
+
+  /**
+   * Get the scope from the 'include' and 'exclude' options.
+   * @return The scope, or null if all text is parsed.
+   */
+  public static ParseScope fromOptions(final Map<String, String> options) throws XPathException {
+    final List<String[]> include = getPaths(options, ExtensionFunctionsModule.INCLUDE_OPTION);
+    final List<String[]> exclude = getPaths(options, ExtensionFunctionsModule.EXCLUDE_OPTION);
+    return include == null && exclude == null ? null : new ParseScope(include, exclude);
+  }
+
+  private static List<String[]> getPaths(final Map<String, String> options, final String name) throws XPathException {
+    final String value = options.get(name);
+    if (value == null) {
+      return null;
+    }
+    if (value.isBlank()) {
+      throw new XPathException(ErrorCodes.ERROR, "The option \"" + name + "\" must have at least one element name");
+    }
+    final List<String[]> paths = new ArrayList<>();
+    for (String path : value.trim().split("\\s+")) {
+      final String[] names = path.split("/");
+      if (Arrays.asList(names).contains("")) {
+        throw new XPathException(ErrorCodes.ERROR, "The option \"" + name + "\" has an invalid path \"" + path + "\"");
+      }
+      paths.add(names);
+    }
+    return paths;
+  }
+
+  /**
+   * Get the segments of the text content that are parsed.
+   * The root element of the SMAX document is a wrapper around the input, which is not matched.
+   * @return The start and end positions of the segments, in document order.
+   */
+  public List<int[]> getSegments(SmaxDocument smaxDocument) {
+    final SmaxElement root = smaxDocument.getMarkup();
+    final List<int[]> included = new ArrayList<>();
+    if (include == null) {
+      included.add(new int[] {root.getStartPos(), root.getEndPos()});
+    } else {
+      collect(root.getChildren(), include, new ArrayDeque<>(), included);
+    }
+    final List<int[]> excluded = new ArrayList<>();
+    if (exclude != null) {
+      collect(root.getChildren(), exclude, new ArrayDeque<>(), excluded);
+    }
+    // Remove the excluded regions from the included regions. Both are in document order, and do not overlap each other.
+    final List<int[]> segments = new ArrayList<>();
+    final Iterator<int[]> excludedRegions = excluded.iterator();
+    int[] excludedRegion = excludedRegions.hasNext() ? excludedRegions.next() : null;
+    for (int[] region : included) {
+      int start = region[0];
+      while (excludedRegion != null && excludedRegion[0] < region[1]) {
+        if (excludedRegion[1] > start) {
+          addSegment(segments, start, excludedRegion[0]);
+          start = Math.max(start, excludedRegion[1]);
+        }
+        if (excludedRegion[1] > region[1]) {
+          // This excluded region also covers the start of the next included region.
+          break;
+        }
+        excludedRegion = excludedRegions.hasNext() ? excludedRegions.next() : null;
+      }
+      addSegment(segments, start, region[1]);
+    }
+    return segments;
+  }
+
+  private static void addSegment(List<int[]> segments, int start, int end) {
+    if (start < end) {
+      segments.add(new int[] {start, end});
+    }
+  }
+
+  // Collect the regions of the outermost elements that match a path.
+  private static void collect(List<SmaxElement> elements, List<String[]> paths, Deque<String> ancestors, List<int[]> regions) {
+    for (SmaxElement element : elements) {
+      if (matches(element, paths, ancestors)) {
+        regions.add(new int[] {element.getStartPos(), element.getEndPos()});
+      } else {
+        ancestors.push(element.getLocalName());
+        collect(element.getChildren(), paths, ancestors, regions);
+        ancestors.pop();
+      }
+    }
+  }
+
+  // Whether an element matches one of the paths. The ancestors are the local names of the ancestors, starting with the parent.
+  private static boolean matches(SmaxElement element, List<String[]> paths, Deque<String> ancestors) {
+    for (String[] path : paths) {
+      if (!matches(element, path[path.length - 1]) || path.length - 1 > ancestors.size()) {
+        continue;
+      }
+      boolean matches = true;
+      final Iterator<String> ancestorNames = ancestors.iterator();
+      for (int i = path.length - 2; matches && i >= 0; --i) {
+        matches = path[i].equals(ancestorNames.next());
+      }
+      if (matches) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // A name matches the local name or the qualified name of an element.
+  private static boolean matches(SmaxElement element, String name) {
+    return name.equals(element.getLocalName()) || name.equals(element.getQualifiedName());
+  }
+
+}
@@ -0,0 +1,158 @@
+package com.rakensi;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.bottlecaps.markup.blitz.Option;
+import de.bottlecaps.markup.blitz.Parser;
+
+/**
+ * A bounded cache of generated Markup Blitz parsers, shared by the ixml and tixml functions.
+ * Parsers are keyed by a hash of the grammar and the Markup Blitz options.
+ * When the cache is full, the least recently used parser is evicted.
+ * The number of conflicts in the tables of a parser is counted once, when it is generated, and kept with the parser.
+ * A maximum size of 0 disables caching.
+ */
+public class ParserCache
+{
+
+  public static final int DEFAULT_MAX_SIZE = 64;
+
+  private int maxSize;
+  private final LinkedHashMap<String, CachedParser> parsers;
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+
+  public ParserCache(int maxSize) {
+    this.maxSize = maxSize;
+    // An access-ordered map, so the first entry is the least recently used one.
+    this.parsers = new LinkedHashMap<>(16, 0.75f, true);
+    this.hits = new AtomicLong();
+    this.misses = new AtomicLong();
+  }
+
+  /**
+   * Get a parser for a grammar and options, generating it if it is not in the cache.
+   * Generation happens outside the lock, so a slow grammar does not block other lookups.
+   * @param grammar The ixml grammar.
+   * @param options The Markup Blitz options, as returned by {@link ExtensionFunctionsModule#getOptions}.
+   * @return The generated parser.
+   */
+  public Parser get(String grammar, Map<Option, Object> options) {
+    return get(hash(grammar), grammar, options, null);
+  }
+
+  /**
+   * Get a parser for a grammar and options, generating it if it is not in the cache.
+   * @param grammarHash The hash of the grammar, as returned by {@link #hash(String)}.
+   * @param grammar The ixml grammar.
+   * @param options The Markup Blitz options.
+   * @param statistics Where cache hits and generations are counted, or null.
+   * @return The generated parser.
+   */
+  public Parser get(String grammarHash, String grammar, Map<Option, Object> options, ParserStatistics.GrammarStatistics statistics) {
+    final String key = grammarHash + new TreeMap<>(options);
+    synchronized (this) {
+      final CachedParser cached = parsers.get(key);
+      if (cached != null) {
+        hits.incrementAndGet();
+        if (statistics != null) {
+          statistics.cacheHit();
+          statistics.setConflicts(cached.conflicts);
+        }
+        return cached.parser;
+      }
+    }
+    misses.incrementAndGet();
+    final long startTime = System.nanoTime();
+    final Parser parser = ExtensionFunctionsModule.newParser(grammar, options);
+    final long generationTime = System.nanoTime() - startTime;
+    final CachedParser generated = new CachedParser(parser);
+    if (statistics != null) {
+      statistics.generated(generationTime);
+      statistics.setConflicts(generated.conflicts);
+    }
+    synchronized (this) {
+      if (maxSize > 0) {
+        // Another thread may have generated the same parser in the meantime.
+        final CachedParser cached = parsers.putIfAbsent(key, generated);
+        if (cached != null) {
+          return cached.parser;
+        }
+        evict();
+      }
+    }
+    return generated.parser;
+  }
+
+  public synchronized void setMaxSize(int maxSize) {
+    this.maxSize = Math.max(0, maxSize);
+    evict();
+  }
+
+  public synchronized int getMaxSize() {
+    return maxSize;
+  }
+
+  public synchronized int size() {
+    return parsers.size();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public synchronized void clear() {
+    parsers.clear();
+  }
+
+  // Remove least recently used parsers until the cache fits. The caller must hold the lock.
+  private void evict() {
+    for (Iterator<String> it = parsers.keySet().iterator(); parsers.size() > maxSize && it.hasNext();) {
+      it.next();
+      it.remove();
+    }
+  }
+
+  // A generated parser with the number of conflicts in its tables.
+  private static final class CachedParser {
+
+    private final Parser parser;
+    private final int conflicts;
+
+    public CachedParser(Parser parser) {
+      this.parser = parser;
+      this.conflicts = ExtensionFunctionsModule.countConflicts(parser);
+    }
+
+  }
+
+  /**
+   * Get the hash of a grammar, which identifies the grammar in the cache and in the statistics.
+   * The cache key is this hash, followed by the options in a fixed order.
+   */
+  public static String hash(String grammar) {
+    final StringBuilder hash = new StringBuilder();
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      for (byte b : digest.digest(grammar.getBytes(StandardCharsets.UTF_8))) {
+        hash.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform supports SHA-256, but fall back to the grammar itself.
+      hash.append(grammar);
+    }
+    return hash.toString();
+  }
+
+}
@@ -0,0 +1,219 @@
+package com.rakensi;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for parser generation and parsing, per kind of function and per grammar.
+ * The kind is "invisible-xml" or "transparent-invisible-xml", and grammars are identified by their hash.
+ * The statistics are available through JMX, and through the ixml:stats() function.
+ */
+public class ParserStatistics implements ParserStatisticsMXBean
+{
+
+  public static final String IXML = "invisible-xml";
+  public static final String TIXML = "transparent-invisible-xml";
+
+  // The parse modes, which depend on the conflicts in the parser tables.
+  public static final String DETERMINISTIC = "deterministic";
+  public static final String GENERALIZED = "generalized";
+
+  // The number of grammars that are counted separately. Other grammars are counted together.
+  private static final int MAX_GRAMMARS = 1000;
+  private static final String OTHER_GRAMMARS = "other";
+
+  // The upper bounds of the parse latency histogram buckets, in milliseconds. The last bucket has no upper bound.
+  static final long[] LATENCY_BOUNDS = {1, 10, 100, 1000, 10000};
+
+  private final ParserCache parserCache;
+  private final Map<String, GrammarStatistics> grammars;
+
+  public ParserStatistics(ParserCache parserCache) {
+    this.parserCache = parserCache;
+    this.grammars = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Get the statistics for a grammar, used by a kind of function.
+   */
+  public GrammarStatistics get(String kind, String grammarHash) {
+    final GrammarStatistics statistics = grammars.get(kind + "/" + grammarHash);
+    if (statistics != null) {
+      return statistics;
+    }
+    final String key = grammars.size() < MAX_GRAMMARS ? kind + "/" + grammarHash : kind + "/" + OTHER_GRAMMARS;
+    return grammars.computeIfAbsent(key, k -> new GrammarStatistics());
+  }
+
+  /**
+   * Get the statistics of all grammars, ordered by their keys.
+   */
+  public Map<String, GrammarStatistics> getGrammars() {
+    return new TreeMap<>(grammars);
+  }
+
+  @Override
+  public int getCacheSize() {
+    return parserCache.size();
+  }
+
+  @Override
+  public int getCacheMaxSize() {
+    return parserCache.getMaxSize();
+  }
+
+  @Override
+  public long getCacheHits() {
+    return parserCache.getHits();
+  }
+
+  @Override
+  public long getCacheMisses() {
+    return parserCache.getMisses();
+  }
+
+  @Override
+  public Map<String, Long> getCounters() {
+    final Map<String, Long> counters = new LinkedHashMap<>();
+    getGrammars().forEach((key, statistics) ->
+      statistics.getCounters().forEach((name, value) -> counters.put(key + "/" + name, value))
+    );
+    return counters;
+  }
+
+  // The counters are set to zero in place, because functions that were made earlier keep their grammar statistics.
+  @Override
+  public void reset() {
+    grammars.values().forEach(GrammarStatistics::reset);
+  }
+
+  /**
+   * The counters for one grammar and kind of function.
+   */
+  public static final class GrammarStatistics {
+
+    private final LongAdder generations = new LongAdder();
+    private final LongAdder generationNanos = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder parses = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder inputCharacters = new LongAdder();
+    private final LongAdder resultNodes = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder buildNanos = new LongAdder();
+    private final LongAdder[] latencies;
+    // The number of conflicts in the parser tables, or -1 if it is not known.
+    private volatile int conflicts = -1;
+
+    GrammarStatistics() {
+      latencies = new LongAdder[LATENCY_BOUNDS.length + 1];
+      for (int i = 0; i < latencies.length; ++i) {
+        latencies[i] = new LongAdder();
+      }
+    }
+
+    /**
+     * Count the generation of a parser.
+     * @param nanos The time taken to generate the parser.
+     */
+    public void generated(long nanos) {
+      generations.increment();
+      generationNanos.add(nanos);
+    }
+
+    public void cacheHit() {
+      cacheHits.increment();
+    }
+
+    /**
+     * Set the number of conflicts in the tables of the parser, as counted by {@link ExtensionFunctionsModule#countConflicts}.
+     */
+    public void setConflicts(int conflicts) {
+      if (conflicts >= 0) {
+        this.conflicts = conflicts;
+      }
+    }
+
+    /**
+     * Get the parse mode: {@link #DETERMINISTIC} when the parser tables have no conflicts, otherwise {@link #GENERALIZED}.
+     * @return The parse mode, or null if the conflicts are not known.
+     */
+    public String getParseMode() {
+      final int conflicts = this.conflicts;
+      return conflicts < 0 ? null : conflicts == 0 ? DETERMINISTIC : GENERALIZED;
+    }
+
+    /**
+     * Count a parse. The latency histogram counts the parse time and the build time together.
+     * @param nanos The time taken by the parse. When the result is built while parsing, this includes building the result.
+     * @param buildNanos The time taken to build the result after the parse, such as replaying recorded parser events.
+     * @param inputLength The number of input characters.
+     * @param nodes The number of element nodes in the result.
+     * @param failed Whether the input could not be parsed.
+     */
+    public void parsed(long nanos, long buildNanos, long inputLength, long nodes, boolean failed) {
+      parses.increment();
+      if (failed) {
+        failures.increment();
+      }
+      inputCharacters.add(inputLength);
+      resultNodes.add(nodes);
+      parseNanos.add(nanos);
+      this.buildNanos.add(buildNanos);
+      final long millis = TimeUnit.NANOSECONDS.toMillis(nanos + buildNanos);
+      int bucket = 0;
+      while (bucket < LATENCY_BOUNDS.length && millis >= LATENCY_BOUNDS[bucket]) {
+        ++bucket;
+      }
+      latencies[bucket].increment();
+    }
+
+    /**
+     * Get the counters, including the latency histogram with keys like "parses-under-10ms".
+     */
+    public Map<String, Long> getCounters() {
+      final Map<String, Long> counters = new LinkedHashMap<>();
+      counters.put("generations", generations.sum());
+      counters.put("generation-time-ms", TimeUnit.NANOSECONDS.toMillis(generationNanos.sum()));
+      if (conflicts >= 0) {
+        counters.put("conflicts", (long) conflicts);
+      }
+      counters.put("cache-hits", cacheHits.sum());
+      counters.put("parses", parses.sum());
+      counters.put("failures", failures.sum());
+      counters.put("input-characters", inputCharacters.sum());
+      counters.put("result-nodes", resultNodes.sum());
+      counters.put("parse-time-ms", TimeUnit.NANOSECONDS.toMillis(parseNanos.sum()));
+      counters.put("build-time-ms", TimeUnit.NANOSECONDS.toMillis(buildNanos.sum()));
+      for (int i = 0; i < LATENCY_BOUNDS.length; ++i) {
+        counters.put("parses-under-" + LATENCY_BOUNDS[i] + "ms", latencies[i].sum());
+      }
+      counters.put("parses-over-" + LATENCY_BOUNDS[LATENCY_BOUNDS.length - 1] + "ms", latencies[LATENCY_BOUNDS.length].sum());
+      return counters;
+    }
+
+    /**
+     * Set the counters to zero. The number of conflicts belongs to the parser, so it is kept.
+     */
+    public void reset() {
+      generations.reset();
+      generationNanos.reset();
+      cacheHits.reset();
+      parses.reset();
+      failures.reset();
+      inputCharacters.reset();
+      resultNodes.reset();
+      parseNanos.reset();
+      buildNanos.reset();
+      for (LongAdder latency : latencies) {
+        latency.reset();
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,26 @@
+package com.rakensi;
+
+import java.util.Map;
+
+/**
+ * The JMX interface of {@link ParserStatistics}.
+ */
+public interface ParserStatisticsMXBean
+{
+
+  int getCacheSize();
+
+  int getCacheMaxSize();
+
+  long getCacheHits();
+
+  long getCacheMisses();
+
+  /**
+   * The counters for all grammars, with keys like "invisible-xml/{grammar hash}/parses".
+   */
+  Map<String, Long> getCounters();
+
+  void reset();
+
+}
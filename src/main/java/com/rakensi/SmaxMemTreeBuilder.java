@@ -0,0 +1,141 @@
+package com.rakensi;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.DocumentImpl;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.ValueSequence;
+import org.greenmercury.smax.SmaxDocument;
+import org.greenmercury.smax.SmaxElement;
+import org.xml.sax.Attributes;
+
+/**
+ * Builds eXist-db in-memory nodes directly from a SMAX document.
+ * The root element of the SMAX document is not built; the result is the sequence of nodes inside it.
+ */
+public class SmaxMemTreeBuilder
+{
+
+  private final MemTreeBuilder builder;
+  private final CharSequence content;
+  private final Map<String, QName> names;
+
+  private SmaxMemTreeBuilder(XQueryContext context, CharSequence content) {
+    this.builder = new MemTreeBuilder(context);
+    this.content = content;
+    this.names = new HashMap<>();
+  }
+
+  /**
+   * Build the content of the root element of a SMAX document.
+   * @return The top-level elements and text nodes inside the root element, in document order.
+   */
+  public static Sequence build(SmaxDocument smaxDocument, XQueryContext context) {
+    final SmaxElement root = smaxDocument.getMarkup();
+    return build(smaxDocument, root.getChildren(), root.getStartPos(), root.getEndPos(), context);
+  }
+
+  /**
+   * Build a range of the content of a SMAX document.
+   * @param elements The SMAX elements in the range, in document order. These must not overlap.
+   * @param start The start position of the range in the content.
+   * @param end The end position of the range in the content.
+   * @return The elements and the text between them, in document order.
+   */
+  public static Sequence build(SmaxDocument smaxDocument, List<SmaxElement> elements, int start, int end, XQueryContext context) {
+    return new SmaxMemTreeBuilder(context, smaxDocument.getContentBuffer()).nodes(elements, start, end);
+  }
+
+  private Sequence nodes(List<SmaxElement> elements, int start, int end) {
+    builder.startDocument();
+    // Remember the node numbers of the top-level nodes, so they can be picked from the document afterwards.
+    final int[] topLevelNodes = new int[2 * elements.size() + 1];
+    int nrTopLevelNodes = 0;
+    int pos = start;
+    for (SmaxElement element : elements) {
+      if (element.getStartPos() > pos) {
+        topLevelNodes[nrTopLevelNodes++] = builder.characters(content.subSequence(pos, element.getStartPos()));
+      }
+      topLevelNodes[nrTopLevelNodes++] = element(element, Collections.emptyMap());
+      pos = element.getEndPos();
+    }
+    if (end > pos) {
+      topLevelNodes[nrTopLevelNodes++] = builder.characters(content.subSequence(pos, end));
+    }
+    builder.endDocument();
+    if (nrTopLevelNodes == 0) {
+      return Sequence.EMPTY_SEQUENCE;
+    }
+    final DocumentImpl document = builder.getDocument();
+    final ValueSequence result = new ValueSequence(nrTopLevelNodes);
+    for (int i = 0; i < nrTopLevelNodes; ++i) {
+      result.add(document.getNode(topLevelNodes[i]));
+    }
+    return result;
+  }
+
+  /**
+   * Build an element with its content, and return its node number.
+   * @param inScopeNamespaces The namespace URIs by prefix that are declared on the ancestors of the element.
+   */
+  private int element(SmaxElement element, Map<String, String> inScopeNamespaces) {
+    final String namespaceUri = element.getNamespaceUri() == null ? XMLConstants.NULL_NS_URI : element.getNamespaceUri();
+    final String qualifiedName = element.getQualifiedName();
+    final QName name = names.computeIfAbsent(namespaceUri + ' ' + qualifiedName, key -> {
+      final int colon = qualifiedName.indexOf(':');
+      return colon < 0
+          ? new QName(qualifiedName, namespaceUri)
+          : new QName(qualifiedName.substring(colon + 1), namespaceUri, qualifiedName.substring(0, colon));
+    });
+    final Attributes attributes = element.getAttributes();
+    final int nodeNr = builder.startElement(name, attributes);
+    // The builder leaves out namespace declarations, so they are added as namespace nodes, each prefix once.
+    // The declarations come from xmlns attributes, and from the name of the element when its prefix is not bound to its namespace yet.
+    final Map<String, String> declarations = new LinkedHashMap<>();
+    if (attributes != null) {
+      for (int i = 0; i < attributes.getLength(); ++i) {
+        final String attributeName = attributes.getQName(i);
+        if (attributeName.equals(XMLConstants.XMLNS_ATTRIBUTE)) {
+          declarations.put(XMLConstants.DEFAULT_NS_PREFIX, attributes.getValue(i));
+        } else if (attributeName.startsWith(XMLConstants.XMLNS_ATTRIBUTE + ":")) {
+          declarations.put(attributeName.substring(XMLConstants.XMLNS_ATTRIBUTE.length() + 1), attributes.getValue(i));
+        }
+      }
+    }
+    final String prefix = name.getPrefix() == null ? XMLConstants.DEFAULT_NS_PREFIX : name.getPrefix();
+    if (!namespaceUri.isEmpty() && !declarations.containsKey(prefix) && !namespaceUri.equals(inScopeNamespaces.get(prefix))) {
+      declarations.put(prefix, namespaceUri);
+    }
+    Map<String, String> childNamespaces = inScopeNamespaces;
+    if (!declarations.isEmpty()) {
+      childNamespaces = new HashMap<>(inScopeNamespaces);
+      for (Map.Entry<String, String> declaration : declarations.entrySet()) {
+        builder.namespaceNode(declaration.getKey(), declaration.getValue());
+        childNamespaces.put(declaration.getKey(), declaration.getValue());
+      }
+    }
+    int pos = element.getStartPos();
+    for (SmaxElement child : element.getChildren()) {
+      if (child.getStartPos() > pos) {
+        builder.characters(content.subSequence(pos, child.getStartPos()));
+      }
+      element(child, childNamespaces);
+      pos = child.getEndPos();
+    }
+    if (element.getEndPos() > pos) {
+      builder.characters(content.subSequence(pos, element.getEndPos()));
+    }
+    builder.endElement();
+    return nodeNr;
+  }
+
+}
@@ -0,0 +1,183 @@
+package com.rakensi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+
+import org.exist.dom.INodeHandle;
+import org.exist.dom.QName;
+import org.exist.dom.memtree.NodeImpl;
+import org.exist.dom.persistent.NodeHandle;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.storage.DBBroker;
+import org.exist.storage.serializers.EXistOutputKeys;
+import org.exist.storage.serializers.Serializer;
+import org.exist.util.serializer.AttrList;
+import org.exist.util.serializer.Receiver;
+import org.exist.xquery.value.NodeValue;
+import org.greenmercury.smax.SmaxDocument;
+import org.greenmercury.smax.SmaxElement;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * An eXist-db receiver that builds a SMAX document from the events of an in-memory or stored node.
+ * In-memory nodes are streamed from the arrays of their document, and stored nodes are streamed by the broker's serializer,
+ * so no DOM nodes are made for the input.
+ * The SMAX document has a root element, which contains the streamed node.
+ * Comments and processing instructions are not represented in SMAX, and are left out.
+ */
+public class SmaxReceiver implements Receiver<INodeHandle>
+{
+
+  private static final String CDATA = "CDATA";
+
+  private final SmaxElement root;
+  private final Deque<SmaxElement> elements;
+  private final StringBuilder content;
+  // Namespace declarations for the next element.
+  private final List<String> prefixMappings;
+
+  /**
+   * @param rootName The name of the root element of the SMAX document.
+   */
+  public SmaxReceiver(String rootName) {
+    root = new SmaxElement(rootName).setStartPos(0);
+    elements = new ArrayDeque<>();
+    elements.push(root);
+    content = new StringBuilder();
+    prefixMappings = new ArrayList<>();
+  }
+
+  /**
+   * Convert a node to a SMAX document, with the node inside a root element.
+   * @param node An in-memory or stored node.
+   * @param rootName The name of the root element.
+   * @param broker The broker, which is needed for stored nodes and for in-memory nodes that refer to stored nodes.
+   */
+  public static SmaxDocument toSmax(NodeValue node, String rootName, DBBroker broker) throws SAXException {
+    final SmaxReceiver receiver = new SmaxReceiver(rootName);
+    final Serializer serializer = broker == null ? null : broker.borrowSerializer();
+    try {
+      if (node.getImplementationType() == NodeValue.IN_MEMORY_NODE) {
+        final NodeImpl<?> inMemoryNode = (NodeImpl<?>) node;
+        inMemoryNode.getOwnerDocument().streamTo(serializer, inMemoryNode, receiver);
+      } else if (serializer == null) {
+        throw new SAXException("A stored node cannot be converted without a database broker");
+      } else {
+        serializer.setProperty(EXistOutputKeys.HIGHLIGHT_MATCHES, "none");
+        serializer.setReceiver(receiver);
+        serializer.toReceiver(node instanceof NodeProxy ? (NodeProxy) node : new NodeProxy((NodeHandle) node), false);
+      }
+    } finally {
+      if (serializer != null) {
+        broker.returnSerializer(serializer);
+      }
+    }
+    return receiver.getSmaxDocument();
+  }
+
+  /**
+   * The SMAX document, once all events have been received.
+   */
+  public SmaxDocument getSmaxDocument() {
+    root.setEndPos(content.length());
+    return new SmaxDocument(root, content);
+  }
+
+  @Override
+  public void startDocument() {
+  }
+
+  @Override
+  public void endDocument() {
+  }
+
+  @Override
+  public void startPrefixMapping(String prefix, String namespaceURI) {
+    prefixMappings.add(prefix);
+    prefixMappings.add(namespaceURI);
+  }
+
+  @Override
+  public void endPrefixMapping(String prefix) {
+  }
+
+  @Override
+  public void startElement(QName qname, AttrList attribs) {
+    final AttributesImpl attributes = new AttributesImpl();
+    // Namespace declarations are attributes in SMAX, as they are in the DOM.
+    for (int i = 0; i < prefixMappings.size(); i += 2) {
+      final String prefix = prefixMappings.get(i);
+      if (prefix == null || prefix.isEmpty()) {
+        attributes.addAttribute(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, XMLConstants.XMLNS_ATTRIBUTE, XMLConstants.XMLNS_ATTRIBUTE, CDATA, prefixMappings.get(i + 1));
+      } else {
+        attributes.addAttribute(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, prefix, XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix, CDATA, prefixMappings.get(i + 1));
+      }
+    }
+    prefixMappings.clear();
+    if (attribs != null) {
+      for (int i = 0; i < attribs.getLength(); ++i) {
+        final QName name = attribs.getQName(i);
+        attributes.addAttribute(namespaceURI(name), name.getLocalPart(), name.getStringValue(), CDATA, attribs.getValue(i));
+      }
+    }
+    final SmaxElement element = new SmaxElement(namespaceURI(qname), qname.getLocalPart(), qname.getStringValue(), attributes).setStartPos(content.length());
+    elements.peek().appendChild(element);
+    elements.push(element);
+  }
+
+  @Override
+  public void endElement(QName qname) {
+    elements.pop().setEndPos(content.length());
+  }
+
+  @Override
+  public void characters(CharSequence seq) {
+    content.append(seq);
+  }
+
+  @Override
+  public void attribute(QName qname, String value) {
+  }
+
+  @Override
+  public void comment(char[] ch, int start, int length) {
+  }
+
+  @Override
+  public void cdataSection(char[] ch, int start, int len) {
+    content.append(ch, start, len);
+  }
+
+  @Override
+  public void processingInstruction(String target, String data) {
+  }
+
+  @Override
+  public void documentType(String name, String publicId, String systemId) {
+  }
+
+  @Override
+  public void highlightText(CharSequence seq) {
+    content.append(seq);
+  }
+
+  @Override
+  public void setCurrentNode(INodeHandle node) {
+  }
+
+  @Override
+  public Document getDocument() {
+    return null;
+  }
+
+  private static String namespaceURI(QName name) {
+    return name.getNamespaceURI() == null ? XMLConstants.NULL_NS_URI : name.getNamespaceURI();
+  }
+
+}
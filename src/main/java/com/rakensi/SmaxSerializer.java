@@ -1,6 +1,8 @@
 package com.rakensi;
 
-import java.util.Stack;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
 
 import org.greenmercury.smax.Balancing;
 import org.greenmercury.smax.SmaxDocument;
@@ -8,40 +10,55 @@ import org.greenmercury.smax.SmaxElement;
 
 import de.bottlecaps.markup.blitz.Errors;
 import de.bottlecaps.markup.blitz.Serializer;
-import de.bottlecaps.markup.blitz.codepoints.UnicodeCategory;
 
 public class SmaxSerializer implements Serializer<SmaxDocument>
 {
 
   private SmaxDocument document;
-  private Stack<SmaxElement> newElements;
+  // The list where the top-level new elements are collected instead of merged, or null.
+  private List<SmaxElement> topElements;
+  private Deque<SmaxElement> newElements;
   private int attributeLevel;
   private String attributeName;
   private StringBuilder content;
   private int charPointer;
+  private int elementCount;
 
   public SmaxSerializer(SmaxDocument document) {
+    this(document, null, 0);
+  }
+
+  /**
+   * @param topElements The list where the top-level new elements are collected, instead of merging them into the document, or null.
+   * @param offset The position in the text content of the document where the parsed text starts.
+   */
+  public SmaxSerializer(SmaxDocument document, List<SmaxElement> topElements, int offset) {
     this.document = document;
-    newElements = new Stack<>();
+    this.topElements = topElements;
+    newElements = new ArrayDeque<>();
     attributeLevel = 0;
     attributeName = null;
     content = new StringBuilder();
-    charPointer = 0;
+    charPointer = offset;
+    elementCount = 0;
   }
 
   @Override
   public void startNonterminal(String name) {
     SmaxElement newElement = new SmaxElement(name).setStartPos(charPointer);
     newElements.push(newElement);
+    ++elementCount;
   }
 
   @Override
   public void endNonterminal(String name) {
     SmaxElement newElement = newElements.pop().setEndPos(charPointer);
-    if (!newElements.empty()) {
+    if (!newElements.isEmpty()) {
       // Add this new element as a child to its parent.
       SmaxElement parent = newElements.peek();
       parent.appendChild(newElement);
+    } else if (topElements != null) {
+      topElements.add(newElement);
     } else {
       // The root element of the serialization is merged into the existing markup.
       // INNER does not include things before and after.
@@ -66,14 +83,14 @@ public class SmaxSerializer implements Serializer<SmaxDocument>
 
   @Override
   public void terminal(int codepoint) {
-    String text = Character.toString(codepoint);
-    if (! UnicodeCategory.xmlChar.containsCodepoint(codepoint))
-      Errors.D04.thro(text);
-    if (attributeLevel == 0 || (attributeName != null && !attributeName.contains(":"))) {
-      charPointer += text.length();
+    // This is called for every input character, so it must not allocate objects.
+    if (! XmlChars.isXmlChar(codepoint))
+      Errors.D04.thro(Character.toString(codepoint));
+    if (attributeLevel == 0 || (attributeName != null && attributeName.indexOf(':') < 0)) {
+      charPointer += Character.charCount(codepoint);
     }
     if (attributeLevel > 0) {
-      content.append(text);
+      content.appendCodePoint(codepoint);
     }
   }
 
@@ -83,6 +100,13 @@ public class SmaxSerializer implements Serializer<SmaxDocument>
     charPointer += length;
   }
 
+  /**
+   * The number of elements that were added to the document.
+   */
+  public int getElementCount() {
+    return elementCount;
+  }
+
   @Override
   public SmaxDocument getSerialization()
   {
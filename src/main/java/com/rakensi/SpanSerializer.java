@@ -0,0 +1,158 @@
+package com.rakensi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.exist.xquery.Expression;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.ValueSequence;
+
+import de.bottlecaps.markup.blitz.Errors;
+import de.bottlecaps.markup.blitz.Serializer;
+
+/**
+ * A Markup Blitz serializer that records the span of each nonterminal in the input, for standoff annotations.
+ * Positions are counted like in {@link SmaxSerializer}, in UTF-16 characters from the start of the input.
+ * Nothing is merged into a document, so this is much cheaper than building the marked-up result.
+ */
+public class SpanSerializer implements Serializer<List<SpanSerializer.Span>>
+{
+
+  private final List<Span> spans;
+  private final Deque<Span> openSpans;
+  private int attributeLevel;
+  private String attributeName;
+  private StringBuilder content;
+  private int charPointer;
+
+  public SpanSerializer() {
+    spans = new ArrayList<>();
+    openSpans = new ArrayDeque<>();
+    attributeLevel = 0;
+    attributeName = null;
+    content = new StringBuilder();
+    charPointer = 0;
+  }
+
+  @Override
+  public void startNonterminal(String name) {
+    // Spans are in the order of their start, like elements in document order.
+    final Span span = new Span(name, charPointer);
+    spans.add(span);
+    openSpans.push(span);
+  }
+
+  @Override
+  public void endNonterminal(String name) {
+    openSpans.pop().end = charPointer;
+  }
+
+  @Override
+  public void startAttribute(String name) {
+    ++attributeLevel;
+    attributeName = name;
+    content.setLength(0);
+  }
+
+  @Override
+  public void endAttribute() {
+    openSpans.peek().setAttribute(attributeName, content.toString());
+    content.setLength(0);
+    --attributeLevel;
+    attributeName = null;
+  }
+
+  @Override
+  public void terminal(int codepoint) {
+    if (! XmlChars.isXmlChar(codepoint))
+      Errors.D04.thro(Character.toString(codepoint));
+    if (attributeLevel == 0 || (attributeName != null && attributeName.indexOf(':') < 0)) {
+      charPointer += Character.charCount(codepoint);
+    }
+    if (attributeLevel > 0) {
+      content.appendCodePoint(codepoint);
+    }
+  }
+
+  @Override
+  public void excluded(int length)
+  {
+    charPointer += length;
+  }
+
+  @Override
+  public List<Span> getSerialization()
+  {
+    return spans;
+  }
+
+  /**
+   * Make the result of a parser function with span output.
+   * @return A sequence of map { "name": ..., "start": ..., "end": ..., "attributes": map { name: value } }
+   */
+  public static Sequence toSequence(Expression caller, List<Span> spans) throws XPathException {
+    final ValueSequence result = new ValueSequence(spans.size());
+    for (Span span : spans) {
+      final MapType map = new MapType(caller, caller.getContext());
+      map.add(new StringValue("name"), new StringValue(span.name));
+      map.add(new StringValue("start"), new IntegerValue(span.start));
+      map.add(new StringValue("end"), new IntegerValue(span.end));
+      final MapType attributes = new MapType(caller, caller.getContext());
+      if (span.attributes != null) {
+        for (Map.Entry<String, String> attribute : span.attributes.entrySet()) {
+          attributes.add(new StringValue(attribute.getKey()), new StringValue(attribute.getValue()));
+        }
+      }
+      map.add(new StringValue("attributes"), attributes);
+      result.add(map);
+    }
+    return result;
+  }
+
+  /**
+   * The span of a nonterminal, from its start position up to its end position, with its attributes.
+   */
+  public static final class Span {
+
+    private final String name;
+    private final int start;
+    private int end;
+    private Map<String, String> attributes;
+
+    Span(String name, int start) {
+      this.name = name;
+      this.start = start;
+      this.end = start;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getStart() {
+      return start;
+    }
+
+    public int getEnd() {
+      return end;
+    }
+
+    // Most spans have no attributes, so the map is made when it is needed.
+    private void setAttribute(String name, String value) {
+      if (attributes == null) {
+        attributes = new LinkedHashMap<>();
+      }
+      attributes.put(name, value);
+    }
+
+  }
+
+}
@@ -0,0 +1,266 @@
+package com.rakensi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.exist.dom.NodeListImpl;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.ElementImpl;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.dom.persistent.IStoredNode;
+import org.exist.storage.DBBroker;
+import org.exist.storage.UpdateListener;
+import org.exist.storage.lock.ManagedDocumentLock;
+import org.exist.storage.txn.TransactionException;
+import org.exist.storage.txn.Txn;
+import org.exist.numbering.NodeId;
+import org.exist.util.LockException;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.NodeValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
+import org.greenmercury.smax.SmaxDocument;
+import org.greenmercury.smax.SmaxElement;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Writes the markup that a tixml parser added to a SMAX document back into the stored element that the SMAX document was made from.
+ * Only the stored text nodes that gained markup are replaced.
+ * When new markup encloses existing elements, the smallest existing element that contains it is replaced as a whole.
+ * The SMAX document has no comments and processing instructions, so an element that has them is not replaced, and the write-back fails instead.
+ * The caller must hold a write lock on the stored document.
+ */
+public class StoredMarkupWriter
+{
+
+  private final SmaxDocument smaxDocument;
+  // The SMAX elements that represent stored elements, as opposed to new markup.
+  private final Set<SmaxElement> originals;
+  private final List<TextUpdate> textUpdates;
+  private final List<ElementUpdate> elementUpdates;
+
+  /**
+   * Remember the existing markup of a SMAX document. This must be called before new markup is added.
+   * @param smaxDocument A SMAX document made by {@link SmaxReceiver}, with a root element that contains one stored element.
+   */
+  public StoredMarkupWriter(SmaxDocument smaxDocument) {
+    this.smaxDocument = smaxDocument;
+    this.originals = Collections.newSetFromMap(new IdentityHashMap<>());
+    this.textUpdates = new ArrayList<>();
+    this.elementUpdates = new ArrayList<>();
+    for (SmaxElement child : smaxDocument.getMarkup().getChildren()) {
+      addOriginals(child);
+    }
+  }
+
+  /**
+   * Adds markup to the SMAX document of a stored element.
+   */
+  public interface MarkupParser<T> {
+    /**
+     * @param smaxDocument The SMAX document, made by {@link SmaxReceiver}.
+     * @param text The text content of the SMAX document.
+     * @return The result of adding the markup, such as the serializer that added it.
+     */
+    T parse(SmaxDocument smaxDocument, String text) throws XPathException;
+  }
+
+  /**
+   * Lock the document of a stored element, add markup to the element, and store the document, in one transaction.
+   * The element is converted after the document has been locked, so it does not change before the markup is written back.
+   * @param context The query context for building the new nodes, or null.
+   * @return The result of the parser.
+   */
+  public static <T> T writeBack(DBBroker broker, ElementImpl element, XQueryContext context, MarkupParser<T> parser)
+      throws XPathException, LockException, SAXException, TransactionException {
+    final DocumentImpl document = element.getOwnerDocument();
+    try (final ManagedDocumentLock documentLock = broker.getBrokerPool().getLockManager().acquireDocumentWriteLock(document.getURI());
+         final Txn transaction = broker.continueOrBeginTransaction()) {
+      final SmaxDocument smaxDocument = SmaxReceiver.toSmax(new NodeProxy(element), "wrapper", broker);
+      final StoredMarkupWriter markupWriter = new StoredMarkupWriter(smaxDocument);
+      final T result = parser.parse(smaxDocument, smaxDocument.getContentBuffer().toString());
+      if (markupWriter.write(broker, element, transaction, context) > 0) {
+        document.setLastModified(System.currentTimeMillis());
+        broker.storeXMLResource(transaction, document);
+        broker.getBrokerPool().getNotificationService().notifyUpdate(document, UpdateListener.UPDATE);
+      }
+      transaction.commit();
+      return result;
+    }
+  }
+
+  /**
+   * Write the new markup into the stored element.
+   * All updates are planned before anything is changed. The stored nodes are found again by their node ids just before they are updated,
+   * so no node object is used after an update in the same transaction.
+   * @param element The stored element that the SMAX document was made from.
+   * @param transaction The transaction for the updates.
+   * @return The number of stored nodes that were replaced.
+   */
+  public int write(DBBroker broker, ElementImpl element, Txn transaction, XQueryContext context) throws XPathException {
+    final List<SmaxElement> topLevel = smaxDocument.getMarkup().getChildren();
+    if (topLevel.size() != 1 || !originals.contains(topLevel.get(0))) {
+      throw new XPathException(ErrorCodes.ERROR, "Markup around the whole input element cannot be written back. Make the root nonterminal of the grammar hidden.");
+    }
+    plan(element, topLevel.get(0));
+    final DocumentImpl document = element.getOwnerDocument();
+    // Replacing text nodes does not change the node ids of their sibling elements, so the text is updated first.
+    for (TextUpdate update : textUpdates) {
+      final IStoredNode<?> text = broker.objectWith(document, update.text);
+      final ElementImpl parent = (ElementImpl) text.getParentStoredNode();
+      final Sequence nodes = SmaxMemTreeBuilder.build(smaxDocument, update.newElements, update.start, update.end, context);
+      final NodeListImpl nodeList = new NodeListImpl(nodes.getItemCount());
+      for (SequenceIterator it = nodes.iterate(); it.hasNext();) {
+        nodeList.add(((NodeValue) it.nextItem()).getNode());
+      }
+      parent.insertBefore(transaction, nodeList, text);
+      parent.removeChild(transaction, text);
+    }
+    for (ElementUpdate update : elementUpdates) {
+      final IStoredNode<?> replaced = broker.objectWith(document, update.element);
+      final IStoredNode<?> parent = replaced.getParentStoredNode();
+      if (!(parent instanceof ElementImpl)) {
+        throw new XPathException(ErrorCodes.ERROR, "Markup around the document element cannot be written back.");
+      }
+      final Sequence nodes = SmaxMemTreeBuilder.build(smaxDocument, Collections.singletonList(update.smaxElement), update.smaxElement.getStartPos(), update.smaxElement.getEndPos(), context);
+      ((ElementImpl) parent).replaceChild(transaction, ((NodeValue) nodes.itemAt(0)).getNode(), replaced);
+    }
+    return textUpdates.size() + elementUpdates.size();
+  }
+
+  // Find the updates for a stored element and its SMAX counterpart.
+  private void plan(ElementImpl element, SmaxElement smaxElement) throws XPathException {
+    final List<TextUpdate> elementTextUpdates = new ArrayList<>();
+    final List<ElementImpl> childElements = new ArrayList<>();
+    final List<SmaxElement> smaxChildElements = new ArrayList<>();
+    final List<SmaxElement> smaxChildren = smaxElement.getChildren();
+    int smaxIndex = 0;
+    int pos = smaxElement.getStartPos();
+    boolean replace = false;
+    final NodeList children = element.getChildNodes();
+    for (int i = 0; i < children.getLength() && !replace; ++i) {
+      final Node child = children.item(i);
+      switch (child.getNodeType()) {
+        case Node.ELEMENT_NODE:
+          // The next SMAX child must be the counterpart of this element. New markup before it has been placed in a text node.
+          if (smaxIndex < smaxChildren.size() && originals.contains(smaxChildren.get(smaxIndex))) {
+            childElements.add((ElementImpl) child);
+            smaxChildElements.add(smaxChildren.get(smaxIndex));
+            pos = smaxChildren.get(smaxIndex).getEndPos();
+            ++smaxIndex;
+          } else {
+            replace = true;
+          }
+          break;
+        case Node.TEXT_NODE:
+        case Node.CDATA_SECTION_NODE:
+          final int end = pos + child.getNodeValue().length();
+          final List<SmaxElement> newElements = new ArrayList<>();
+          while (smaxIndex < smaxChildren.size() && !originals.contains(smaxChildren.get(smaxIndex)) &&
+                 smaxChildren.get(smaxIndex).getStartPos() >= pos && smaxChildren.get(smaxIndex).getEndPos() <= end) {
+            final SmaxElement newElement = smaxChildren.get(smaxIndex++);
+            if (containsOriginals(newElement)) {
+              replace = true;
+            }
+            newElements.add(newElement);
+          }
+          if (!newElements.isEmpty()) {
+            elementTextUpdates.add(new TextUpdate(((IStoredNode<?>) child).getNodeId(), newElements, pos, end));
+          }
+          pos = end;
+          break;
+        default:
+          // Comments and processing instructions are not in the SMAX document.
+          break;
+      }
+    }
+    if (replace || smaxIndex < smaxChildren.size()) {
+      // New markup does not fit inside the text nodes, so the element is replaced by a copy that is built from the SMAX document.
+      if (hasCommentsOrProcessingInstructions(element)) {
+        throw new XPathException(ErrorCodes.ERROR, "New markup crosses the boundaries of nodes in element " + element.getNodeName() +
+            ", which cannot be rebuilt without losing its comments or processing instructions.");
+      }
+      elementUpdates.add(new ElementUpdate(element.getNodeId(), smaxElement));
+      return;
+    }
+    textUpdates.addAll(elementTextUpdates);
+    for (int i = 0; i < childElements.size(); ++i) {
+      plan(childElements.get(i), smaxChildElements.get(i));
+    }
+  }
+
+  // Whether a stored element has comments or processing instructions, which are not in the SMAX document.
+  private static boolean hasCommentsOrProcessingInstructions(Node node) {
+    final NodeList children = node.getChildNodes();
+    for (int i = 0; i < children.getLength(); ++i) {
+      final Node child = children.item(i);
+      switch (child.getNodeType()) {
+        case Node.COMMENT_NODE:
+        case Node.PROCESSING_INSTRUCTION_NODE:
+          return true;
+        case Node.ELEMENT_NODE:
+          if (hasCommentsOrProcessingInstructions(child)) {
+            return true;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return false;
+  }
+
+  private void addOriginals(SmaxElement smaxElement) {
+    originals.add(smaxElement);
+    for (SmaxElement child : smaxElement.getChildren()) {
+      addOriginals(child);
+    }
+  }
+
+  private boolean containsOriginals(SmaxElement smaxElement) {
+    for (SmaxElement child : smaxElement.getChildren()) {
+      if (originals.contains(child) || containsOriginals(child)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A stored text node that is replaced by text and new elements.
+   */
+  private static final class TextUpdate {
+    private final NodeId text;
+    private final List<SmaxElement> newElements;
+    private final int start;
+    private final int end;
+
+    public TextUpdate(NodeId text, List<SmaxElement> newElements, int start, int end) {
+      this.text = text;
+      this.newElements = newElements;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  /**
+   * A stored element that is replaced as a whole.
+   */
+  private static final class ElementUpdate {
+    private final NodeId element;
+    private final SmaxElement smaxElement;
+
+    public ElementUpdate(NodeId element, SmaxElement smaxElement) {
+      this.element = element;
+      this.smaxElement = smaxElement;
+    }
+  }
+
+}
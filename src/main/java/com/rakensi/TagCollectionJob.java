@@ -0,0 +1,554 @@
+package com.rakensi;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.ElementImpl;
+import org.exist.dom.persistent.LockedDocument;
+import org.exist.scheduler.JobException;
+import org.exist.scheduler.UserJavaJob;
+import org.exist.security.AbstractAccount;
+import org.exist.security.Account;
+import org.exist.security.Permission;
+import org.exist.security.PermissionDeniedException;
+import org.exist.security.Subject;
+import org.exist.security.internal.SubjectAccreditedImpl;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.storage.lock.ManagedDocumentLock;
+import org.exist.storage.txn.TransactionException;
+import org.exist.storage.txn.Txn;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.XPathException;
+import org.xml.sax.SAXException;
+
+import de.bottlecaps.markup.blitz.Option;
+import de.bottlecaps.markup.blitz.Parser;
+
+import com.rakensi.ParserStatistics.GrammarStatistics;
+
+/**
+ * A background job that adds the markup of a tixml grammar to all XML documents in a collection and its subcollections.
+ * The markup is written back into the stored documents, as with the 'write-back' option of transparent-invisible-xml.
+ * The job is started by the eXist-db scheduler, and processes the documents with a pool of worker threads.
+ * Each worker has its own broker, and updates each document in its own transaction.
+ * When there is a grammar directory, the progress is kept in a checkpoint there, so an unfinished job continues after a restart.
+ * The checkpoint lists the documents that are done and the documents that failed. Failed documents are tried again when the job continues.
+ */
+public class TagCollectionJob extends UserJavaJob
+{
+
+  private static final org.apache.logging.log4j.Logger logger = org.apache.logging.log4j.LogManager.getLogger(TagCollectionJob.class);
+
+  // The scheduler parameter with the id of the tagging job.
+  private static final String JOB_ID_PARAMETER = "job-id";
+
+  // The checkpoint files of a job are in this subdirectory of the grammar directory.
+  private static final String JOBS_DIRECTORY = "jobs";
+  private static final String JOB_EXTENSION = ".properties";
+  private static final String GRAMMAR_EXTENSION = ".ixml";
+  private static final String DONE_EXTENSION = ".done";
+  private static final String FAILED_EXTENSION = ".failed";
+  private static final String OPTION_PREFIX = "option.";
+
+  public static final String SCHEDULED = "scheduled";
+  public static final String RUNNING = "running";
+  public static final String FINISHED = "finished";
+  public static final String FAILED = "failed";
+
+  // The tagging jobs since eXist-db was started, by id.
+  private static final Map<String, Task> tasks = new ConcurrentHashMap<>();
+  private static final AtomicLong jobNumber = new AtomicLong();
+
+  private String name = "ixml-tag-collection";
+
+  // The scheduler makes a new instance for each execution.
+  public TagCollectionJob() {
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  @Override
+  public void execute(BrokerPool brokerPool, Map<String, ?> params) throws JobException {
+    final Task task = tasks.get(String.valueOf(params.get(JOB_ID_PARAMETER)));
+    if (task == null) {
+      throw new JobException(JobException.JobExceptionAction.JOB_ABORT_THIS, "Unknown ixml tagging job " + params.get(JOB_ID_PARAMETER));
+    }
+    task.run(brokerPool);
+  }
+
+  /**
+   * Start a tagging job.
+   * @param subject The user that the workers run as.
+   * @param checkpointDirectory The directory where the checkpoint is kept, or null.
+   * @return The id of the job.
+   */
+  static String start(BrokerPool brokerPool, Subject subject, XmldbURI collection, String grammar, Map<String, String> options, int workers,
+      Path checkpointDirectory) throws XPathException {
+    final String id = "tag-" + System.currentTimeMillis() + "-" + jobNumber.incrementAndGet();
+    final Task task = new Task(id, collection, grammar, options, workers, subject,
+        checkpointDirectory == null ? null : checkpointDirectory.resolve(JOBS_DIRECTORY), Collections.emptySet());
+    task.writeCheckpoint();
+    tasks.put(id, task);
+    schedule(brokerPool, task);
+    return id;
+  }
+
+  /**
+   * Continue the unfinished jobs that have a checkpoint in the grammar directory.
+   * The workers run as the user that started the job, who must still be an enabled DBA.
+   * @return Whether the jobs were handled, which is false if the database is not ready yet, so this must be called again later.
+   */
+  static boolean resume(Path checkpointDirectory) {
+    final Path jobsDirectory = checkpointDirectory == null ? null : checkpointDirectory.resolve(JOBS_DIRECTORY);
+    if (jobsDirectory == null || !Files.isDirectory(jobsDirectory)) {
+      return true;
+    }
+    final BrokerPool brokerPool;
+    try {
+      brokerPool = BrokerPool.getInstance();
+    } catch (EXistException e) {
+      logger.info("Ixml tagging jobs are continued later, because the database is not available yet");
+      return false;
+    }
+    if (!brokerPool.isOperational() || brokerPool.getScheduler() == null) {
+      logger.info("Ixml tagging jobs are continued later, because the database is not ready yet");
+      return false;
+    }
+    try (DirectoryStream<Path> jobFiles = Files.newDirectoryStream(jobsDirectory, "*" + JOB_EXTENSION)) {
+      for (Path jobFile : jobFiles) {
+        final String fileName = jobFile.getFileName().toString();
+        final String id = fileName.substring(0, fileName.length() - JOB_EXTENSION.length());
+        try {
+          final Properties properties = new Properties();
+          try (InputStream jobStream = Files.newInputStream(jobFile)) {
+            properties.load(jobStream);
+          }
+          final Map<String, String> options = new TreeMap<>();
+          properties.stringPropertyNames().stream()
+            .filter(key -> key.startsWith(OPTION_PREFIX))
+            .forEach(key -> options.put(key.substring(OPTION_PREFIX.length()), properties.getProperty(key)));
+          final Path doneFile = jobsDirectory.resolve(id + DONE_EXTENSION);
+          final Set<String> done = Files.exists(doneFile) ? new HashSet<>(Files.readAllLines(doneFile, StandardCharsets.UTF_8)) : Collections.emptySet();
+          final Task task = new Task(id, XmldbURI.xmldbUriFor(properties.getProperty("collection")),
+              Files.readString(jobsDirectory.resolve(id + GRAMMAR_EXTENSION), StandardCharsets.UTF_8), options,
+              Integer.parseInt(properties.getProperty("workers")), getSubject(brokerPool, properties.getProperty("user")), jobsDirectory, done);
+          tasks.put(id, task);
+          schedule(brokerPool, task);
+          logger.info("Continuing ixml tagging job " + id + " for " + task.collection + ", " + done.size() + " documents were done before");
+        } catch (IOException | URISyntaxException | RuntimeException | XPathException e) {
+          logger.error("Cannot continue ixml tagging job " + id, e);
+        }
+      }
+    } catch (IOException e) {
+      logger.error("Cannot read the ixml tagging jobs in " + jobsDirectory, e);
+    }
+    return true;
+  }
+
+  // Get the user that a continued job runs as. The user may have been removed or changed since the job was started.
+  private static Subject getSubject(BrokerPool brokerPool, String userName) throws XPathException {
+    final Account account = userName == null ? null : brokerPool.getSecurityManager().getAccount(userName);
+    if (account == null || !account.isEnabled() || !account.hasDbaRole()) {
+      throw new XPathException(ErrorCodes.ERROR, "The user " + userName + " who started the job is not an enabled DBA");
+    }
+    return new SubjectAccreditedImpl((AbstractAccount) account, null);
+  }
+
+  /**
+   * Get the tagging jobs since eXist-db was started, ordered by their ids.
+   */
+  static List<Task> getTasks() {
+    return new ArrayList<>(new TreeMap<>(tasks).values());
+  }
+
+  // Run the job once, as soon as possible.
+  private static void schedule(BrokerPool brokerPool, Task task) throws XPathException {
+    final TagCollectionJob job = new TagCollectionJob();
+    job.setName("ixml-tag-collection-" + task.id);
+    final Properties params = new Properties();
+    params.setProperty(JOB_ID_PARAMETER, task.id);
+    if (!brokerPool.getScheduler().createPeriodicJob(0, job, 0, params, 0, true)) {
+      task.state = FAILED;
+      throw new XPathException(ErrorCodes.ERROR, "Cannot schedule the ixml tagging job " + task.id);
+    }
+  }
+
+  /**
+   * The state and progress of one tagging job.
+   */
+  static final class Task {
+
+    private final String id;
+    private final XmldbURI collection;
+    private final String grammar;
+    private final String grammarHash;
+    private final Map<String, String> options;
+    private final int workers;
+    private final Subject subject;
+    // The directory with the checkpoint files, or null.
+    private final Path jobsDirectory;
+    // The documents that were done before the job was continued.
+    private final Set<String> done;
+
+    private volatile String state;
+    private volatile String message;
+    private volatile int documents;
+    private final AtomicInteger processed;
+    private final AtomicInteger failures;
+    private final AtomicLong characters;
+    private volatile long startTime;
+    private volatile long endTime;
+    private BufferedWriter doneWriter;
+    private BufferedWriter failedWriter;
+
+    Task(String id, XmldbURI collection, String grammar, Map<String, String> options, int workers, Subject subject, Path jobsDirectory, Set<String> done) {
+      this.id = id;
+      this.collection = collection;
+      this.grammar = grammar;
+      this.grammarHash = ParserCache.hash(grammar);
+      this.options = options;
+      this.workers = workers;
+      this.subject = subject;
+      this.jobsDirectory = jobsDirectory;
+      this.done = done;
+      this.state = SCHEDULED;
+      this.processed = new AtomicInteger();
+      this.failures = new AtomicInteger();
+      this.characters = new AtomicLong();
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public String getCollection() {
+      return collection.toString();
+    }
+
+    public String getState() {
+      return state;
+    }
+
+    /**
+     * The reason why the job failed, or null.
+     */
+    public String getMessage() {
+      return message;
+    }
+
+    /**
+     * The number of XML documents in the collection, when the job has started.
+     */
+    public int getDocuments() {
+      return documents;
+    }
+
+    /**
+     * The number of documents that are done, including documents that were done before the job was continued.
+     */
+    public int getProcessed() {
+      return done.size() + processed.get() + failures.get();
+    }
+
+    public int getFailures() {
+      return failures.get();
+    }
+
+    public long getCharacters() {
+      return characters.get();
+    }
+
+    /**
+     * The number of documents that were processed per second, since the job was started or continued.
+     */
+    public double getDocumentsPerSecond() {
+      return perSecond(processed.get() + failures.get());
+    }
+
+    /**
+     * The number of characters that were parsed per second, since the job was started or continued.
+     */
+    public double getCharactersPerSecond() {
+      return perSecond(characters.get());
+    }
+
+    private double perSecond(long count) {
+      if (startTime == 0) {
+        return 0;
+      }
+      final long nanos = (endTime == 0 ? System.nanoTime() : endTime) - startTime;
+      return nanos <= 0 ? 0 : count * 1e9 / nanos;
+    }
+
+    void run(BrokerPool brokerPool) {
+      state = RUNNING;
+      startTime = System.nanoTime();
+      try {
+        final Map<Option, Object> blitzOptions = ExtensionFunctionsModule.parseOptions(options);
+        // We cannot serialize errors to SMAX, so we must fail on error.
+        blitzOptions.put(Option.FAIL_ON_ERROR, true);
+        final GrammarStatistics statistics = ExtensionFunctionsModule.getStatistics().get(ParserStatistics.TIXML, grammarHash);
+        final Parser parser = ExtensionFunctionsModule.generateParser(grammarHash, grammar, blitzOptions, statistics);
+        final ParseLimits limits = ParseLimits.fromOptions(options);
+        final ParseScope scope = ParseScope.fromOptions(options);
+        final List<XmldbURI> documentUris = new ArrayList<>();
+        try (DBBroker broker = brokerPool.get(Optional.of(subject))) {
+          listDocuments(broker, collection, documentUris);
+        }
+        documents = documentUris.size();
+        final Queue<XmldbURI> queue = new ConcurrentLinkedQueue<>();
+        for (XmldbURI documentUri : documentUris) {
+          if (!done.contains(documentUri.toString())) {
+            queue.add(documentUri);
+          }
+        }
+        if (jobsDirectory != null) {
+          doneWriter = Files.newBufferedWriter(jobsDirectory.resolve(id + DONE_EXTENSION), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+          // Documents that failed before are tried again, so only the failures of this run are listed.
+          failedWriter = Files.newBufferedWriter(jobsDirectory.resolve(id + FAILED_EXTENSION), StandardCharsets.UTF_8);
+        }
+        final AtomicInteger workerNumber = new AtomicInteger();
+        final ExecutorService workerPool = Executors.newFixedThreadPool(workers, runnable -> {
+          final Thread thread = new Thread(runnable, "ixml-" + id + "-worker-" + workerNumber.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+        try {
+          final List<Future<?>> results = new ArrayList<>(workers);
+          for (int i = 0; i < workers; ++i) {
+            results.add(workerPool.submit(() -> {
+              work(brokerPool, queue, parser, limits, scope, statistics);
+              return null;
+            }));
+          }
+          for (Future<?> result : results) {
+            result.get();
+          }
+        } finally {
+          // After a failure, the other workers stop when they have finished their current document, before the checkpoint files are closed.
+          queue.clear();
+          workerPool.shutdown();
+          while (!workerPool.awaitTermination(1, TimeUnit.MINUTES)) {
+            logger.info("Ixml tagging job " + id + " is waiting for its workers to finish");
+          }
+          if (doneWriter != null) {
+            doneWriter.close();
+          }
+          if (failedWriter != null) {
+            failedWriter.close();
+          }
+        }
+        if (brokerPool.isShuttingDown()) {
+          // The checkpoint is kept, so the job continues after a restart.
+          state = SCHEDULED;
+          logger.info("Ixml tagging job " + id + " stopped at shutdown, after " + getProcessed() + " of " + documents + " documents");
+        } else {
+          state = FINISHED;
+          deleteCheckpoint();
+          logger.info("Ixml tagging job " + id + " finished " + getProcessed() + " documents in " + collection + ", with " + failures.get() + " failures");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        fail(e);
+      } catch (XPathException | EXistException | PermissionDeniedException | LockException | IOException | ExecutionException | RuntimeException e) {
+        fail(e);
+      } finally {
+        endTime = System.nanoTime();
+      }
+    }
+
+    private void fail(Exception e) {
+      state = FAILED;
+      message = e.getMessage();
+      logger.error("Ixml tagging job " + id + " failed", e);
+    }
+
+    // Process documents from the queue, until it is empty or the database shuts down.
+    private void work(BrokerPool brokerPool, Queue<XmldbURI> queue, Parser parser, ParseLimits limits, ParseScope scope, GrammarStatistics statistics)
+        throws EXistException, IOException {
+      try (DBBroker broker = brokerPool.get(Optional.of(subject))) {
+        XmldbURI documentUri;
+        while (!brokerPool.isShuttingDown() && (documentUri = queue.poll()) != null) {
+          if (tag(broker, documentUri, parser, limits, scope, statistics)) {
+            record(doneWriter, documentUri);
+          } else {
+            record(failedWriter, documentUri);
+          }
+        }
+      }
+    }
+
+    /**
+     * Add markup to one document. Failures are logged and counted, and do not stop the job.
+     * @return Whether the document is done, which is also the case when it was removed after the job started.
+     */
+    private boolean tag(DBBroker broker, XmldbURI documentUri, Parser parser, ParseLimits limits, ParseScope scope, GrammarStatistics statistics) {
+      final long startTime = System.nanoTime();
+      final TraceSink traceSink = new TraceSink(id + " " + documentUri, null);
+      try (LockedDocument lockedDocument = broker.getXMLResource(documentUri, LockMode.NO_LOCK)) {
+        if (lockedDocument == null) {
+          // The document was removed after the job started.
+          return true;
+        }
+        final DocumentImpl document = lockedDocument.getDocument();
+        if (!document.getPermissions().validate(broker.getCurrentSubject(), Permission.WRITE)) {
+          throw new PermissionDeniedException("No permission to write to " + documentUri);
+        }
+        // The result is the number of parsed characters and the number of new elements.
+        final long[] tagged = StoredMarkupWriter.writeBack(broker, (ElementImpl) document.getDocumentElement(), null, (smaxDocument, text) -> {
+          final long[] counts = new long[2];
+          final List<int[]> segments = scope == null ? List.of(new int[] {0, text.length()}) : scope.getSegments(smaxDocument);
+          // The maximum input length applies to all text in scope together.
+          long scopedLength = 0;
+          for (int[] segment : segments) {
+            scopedLength += segment[1] - segment[0];
+          }
+          limits.checkInputLength(null, scopedLength);
+          for (int[] segment : segments) {
+            final SmaxSerializer smaxSerializer = new SmaxSerializer(smaxDocument, null, segment[0]);
+            limits.parse(null, null, parser, text.substring(segment[0], segment[1]), smaxSerializer, traceSink);
+            counts[0] += segment[1] - segment[0];
+            counts[1] += smaxSerializer.getElementCount();
+          }
+          return counts;
+        });
+        processed.incrementAndGet();
+        characters.addAndGet(tagged[0]);
+        // The markup is added while parsing, so writing it back is part of the parse time.
+        statistics.parsed(System.nanoTime() - startTime, 0, tagged[0], tagged[1], false);
+        defragment(broker, document);
+        return true;
+      } catch (XPathException | PermissionDeniedException | LockException | SAXException | TransactionException | RuntimeException e) {
+        failures.incrementAndGet();
+        statistics.parsed(System.nanoTime() - startTime, 0, 0, 0, true);
+        logger.warn("Ixml tagging job " + id + " cannot tag " + documentUri + ": " + e.getMessage());
+        return false;
+      }
+    }
+
+    // Defragment a document when the updates have made it too fragmented, like XQuery updates do.
+    private static void defragment(DBBroker broker, DocumentImpl document) throws LockException, TransactionException {
+      final int fragmentationLimit = broker.getBrokerPool().getConfiguration().getInteger(DBBroker.PROPERTY_XUPDATE_FRAGMENTATION_FACTOR);
+      if (fragmentationLimit > 0 && document.getSplitCount() > fragmentationLimit) {
+        try (final ManagedDocumentLock documentLock = broker.getBrokerPool().getLockManager().acquireDocumentWriteLock(document.getURI());
+             final Txn transaction = broker.continueOrBeginTransaction()) {
+          broker.defragXMLResource(transaction, document);
+          transaction.commit();
+        }
+      }
+    }
+
+    // List the XML documents in a collection and its subcollections.
+    private static void listDocuments(DBBroker broker, XmldbURI collectionUri, List<XmldbURI> documentUris) throws PermissionDeniedException, LockException, XPathException {
+      final List<XmldbURI> subcollections = new ArrayList<>();
+      try (Collection collection = broker.openCollection(collectionUri, LockMode.READ_LOCK)) {
+        if (collection == null) {
+          throw new XPathException(ErrorCodes.ERROR, "There is no collection " + collectionUri);
+        }
+        for (Iterator<DocumentImpl> it = collection.iterator(broker); it.hasNext();) {
+          final DocumentImpl document = it.next();
+          if (document.getResourceType() == DocumentImpl.XML_FILE) {
+            documentUris.add(document.getURI());
+          }
+        }
+        for (Iterator<XmldbURI> it = collection.collectionIterator(broker); it.hasNext();) {
+          subcollections.add(collectionUri.append(it.next()));
+        }
+      }
+      for (XmldbURI subcollection : subcollections) {
+        listDocuments(broker, subcollection, documentUris);
+      }
+    }
+
+    // Add a document to the done or failed list of the checkpoint. Done documents are skipped when the job is continued.
+    private static void record(BufferedWriter writer, XmldbURI documentUri) throws IOException {
+      if (writer != null) {
+        synchronized (writer) {
+          writer.write(documentUri.toString());
+          writer.newLine();
+          writer.flush();
+        }
+      }
+    }
+
+    void writeCheckpoint() throws XPathException {
+      if (jobsDirectory == null) {
+        return;
+      }
+      try {
+        Files.createDirectories(jobsDirectory);
+        Files.writeString(jobsDirectory.resolve(id + GRAMMAR_EXTENSION), grammar, StandardCharsets.UTF_8);
+        final Properties properties = new Properties();
+        properties.setProperty("collection", collection.toString());
+        properties.setProperty("workers", Integer.toString(workers));
+        properties.setProperty("user", subject.getUsername());
+        options.forEach((key, value) -> properties.setProperty(OPTION_PREFIX + key, value));
+        try (OutputStream jobStream = Files.newOutputStream(jobsDirectory.resolve(id + JOB_EXTENSION))) {
+          properties.store(jobStream, "Ixml tagging job " + id);
+        }
+      } catch (IOException e) {
+        throw new XPathException(ErrorCodes.ERROR, "Cannot store the checkpoint of ixml tagging job " + id + " in " + jobsDirectory, e);
+      }
+    }
+
+    // Delete the checkpoint of a finished job. The list of failed documents is kept if there were failures.
+    private void deleteCheckpoint() {
+      if (jobsDirectory == null) {
+        return;
+      }
+      for (String extension : failures.get() == 0 ? new String[] {JOB_EXTENSION, GRAMMAR_EXTENSION, DONE_EXTENSION, FAILED_EXTENSION}
+                                                 : new String[] {JOB_EXTENSION, GRAMMAR_EXTENSION, DONE_EXTENSION}) {
+        try {
+          Files.deleteIfExists(jobsDirectory.resolve(id + extension));
+        } catch (IOException e) {
+          logger.warn("Cannot delete the checkpoint of ixml tagging job " + id, e);
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,172 @@
+package com.rakensi;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.exist.xquery.Expression;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.ValueSequence;
+
+/**
+ * Receives the trace output of Markup Blitz for one parse.
+ * Markup Blitz has one trace writer per parser, and parsers are shared between threads.
+ * Therefore, all parsers get the same {@link #WRITER}, which sends the output to the trace sink of the current thread.
+ * A trace sink is used by one thread at a time, so it buffers lines without synchronization.
+ * Lines are logged with a correlation id, or collected in a list so they can be returned to the query.
+ */
+public final class TraceSink
+{
+
+  private static final org.apache.logging.log4j.Logger logger = org.apache.logging.log4j.LogManager.getLogger(TraceSink.class);
+
+  // Numbers the parses in correlation ids.
+  private static final AtomicLong parseNumber = new AtomicLong();
+
+  // The trace sink of each thread. Outside of activate() and deactivate(), lines are logged without a correlation id.
+  private static final ThreadLocal<TraceSink> currentSink = ThreadLocal.withInitial(() -> new TraceSink(null, null));
+
+  /**
+   * The trace writer for all Markup Blitz parsers.
+   */
+  public static final Writer WRITER = new Writer() {
+    @Override
+    public void write(char[] cbuf, int off, int len)
+    {
+      currentSink.get().write(cbuf, off, len);
+    }
+    @Override
+    public void flush()
+    {
+    }
+    @Override
+    public void close()
+    {
+    }
+  };
+
+  private final String correlationId;
+  private final List<String> lines;
+  private final StringBuilder line;
+
+  /**
+   * @param correlationId The id that is logged with each line, or null.
+   * @param lines The list where lines are collected, or null if lines are logged.
+   */
+  public TraceSink(String correlationId, List<String> lines) {
+    this.correlationId = correlationId;
+    this.lines = lines;
+    this.line = new StringBuilder();
+  }
+
+  /**
+   * Make a trace sink with the same correlation id, for a parse on another thread.
+   * Its collected lines are kept apart, until they are added to this trace sink by {@link #addLines(TraceSink)}.
+   */
+  public TraceSink copy() {
+    return new TraceSink(correlationId, lines == null ? null : new ArrayList<>());
+  }
+
+  /**
+   * Add the lines collected by a copy of this trace sink.
+   */
+  public void addLines(TraceSink copy) {
+    if (lines != null && copy.lines != null) {
+      lines.addAll(copy.lines);
+    }
+  }
+
+  /**
+   * Make a correlation id for a parse, which identifies the query, the grammar, and the parse.
+   */
+  public static String correlationId(XQueryContext context, String grammarHash) {
+    return "query " + Integer.toHexString(System.identityHashCode(context)) +
+        " grammar " + (grammarHash == null ? "-" : grammarHash.substring(0, Math.min(12, grammarHash.length()))) +
+        " parse " + parseNumber.incrementAndGet();
+  }
+
+  /**
+   * Make this the trace sink of the current thread.
+   * @return The previous trace sink, which must be passed to {@link #deactivate(TraceSink)}.
+   */
+  public TraceSink activate() {
+    final TraceSink previous = currentSink.get();
+    currentSink.set(this);
+    return previous;
+  }
+
+  /**
+   * Finish the last line, and restore the previous trace sink of the current thread.
+   */
+  public void deactivate(TraceSink previous) {
+    endLine();
+    currentSink.set(previous);
+  }
+
+  /**
+   * Log the collected lines. This is used when a parse fails, so the lines cannot be returned.
+   */
+  public void logLines() {
+    if (lines != null) {
+      for (String collectedLine : lines) {
+        log(collectedLine);
+      }
+    }
+  }
+
+  /**
+   * Make the result of a parser function when lines are collected.
+   * @return map { "result": result, "trace": lines }
+   */
+  public static MapType toMap(Expression caller, Sequence result, List<String> lines) throws XPathException {
+    final ValueSequence trace = new ValueSequence(lines.size());
+    for (String traceLine : lines) {
+      trace.add(new StringValue(traceLine));
+    }
+    final MapType map = new MapType(caller, caller.getContext());
+    map.add(new StringValue("result"), result);
+    map.add(new StringValue("trace"), trace);
+    return map;
+  }
+
+  private void write(char[] cbuf, int off, int len) {
+    final int end = off + len;
+    int start = off;
+    for (int i = off; i < end; ++i) {
+      if (cbuf[i] == '\n') {
+        line.append(cbuf, start, i - start);
+        endLine();
+        start = i + 1;
+      }
+    }
+    line.append(cbuf, start, end - start);
+  }
+
+  private void endLine() {
+    if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+      line.setLength(line.length() - 1);
+    }
+    if (line.length() > 0) {
+      if (lines != null) {
+        lines.add(line.toString());
+      } else {
+        log(line);
+      }
+      line.setLength(0);
+    }
+  }
+
+  private void log(CharSequence traceLine) {
+    if (correlationId == null) {
+      logger.info(traceLine);
+    } else {
+      logger.info("[{}] {}", correlationId, traceLine);
+    }
+  }
+
+}
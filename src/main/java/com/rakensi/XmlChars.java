@@ -0,0 +1,33 @@
+package com.rakensi;
+
+import java.util.BitSet;
+
+import de.bottlecaps.markup.blitz.codepoints.UnicodeCategory;
+
+/**
+ * Fast checks for characters that are allowed in XML.
+ * The result of UnicodeCategory.xmlChar is cached in a bit set for the Basic Multilingual Plane,
+ * so the serializers do not search the code point ranges for every character.
+ */
+final class XmlChars
+{
+
+  private static final int BMP_SIZE = 0x10000;
+
+  private static final BitSet BMP_XML_CHARS = new BitSet(BMP_SIZE);
+  static {
+    for (int codepoint = 0; codepoint < BMP_SIZE; ++codepoint) {
+      if (UnicodeCategory.xmlChar.containsCodepoint(codepoint)) {
+        BMP_XML_CHARS.set(codepoint);
+      }
+    }
+  }
+
+  private XmlChars() {
+  }
+
+  static boolean isXmlChar(int codepoint) {
+    return codepoint < BMP_SIZE ? BMP_XML_CHARS.get(codepoint) : UnicodeCategory.xmlChar.containsCodepoint(codepoint);
+  }
+
+}